@@ -117,6 +117,8 @@ public class NodeTestUtils {
                 .put("http.enabled", true)
                 .put("threadpool.bulk.size", Runtime.getRuntime().availableProcessors())
                 .put("threadpool.bulk.queue_size", 16 * Runtime.getRuntime().availableProcessors()) // default is 50, too low
+                .put("threadpool.xml_parallel.size", 4) // parallel conversion is off with a single processor
+                .put("xml.bulk.max_parallelism", 4)
                 .put("index.number_of_replicas", 0)
                 .put("path.home", getHome())
                 .build();
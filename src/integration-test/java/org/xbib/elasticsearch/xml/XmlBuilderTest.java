@@ -1,19 +1,52 @@
 package org.xbib.elasticsearch.xml;
 
+import com.google.common.base.Charsets;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentGenerator;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.junit.Assert;
 import org.junit.Test;
 import org.xbib.elasticsearch.common.xcontent.XmlXContentBuilder;
 import org.xbib.elasticsearch.common.xcontent.XmlXContentFactory;
 import org.xbib.elasticsearch.common.xcontent.XmlXContentType;
+import org.xbib.elasticsearch.common.xcontent.xml.AbstractXmlXContentGenerator;
+import org.xbib.elasticsearch.common.xcontent.xml.ISO9075;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlFragmentStream;
+import org.xbib.elasticsearch.common.xcontent.xml.MappedInputStream;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlHitsTranscoder;
 import org.xbib.elasticsearch.common.xcontent.xml.XmlNamespaceContext;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlParallelRecordSplitter;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlRecordSplitter;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlValueInference;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlXContent;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlXContentParser;
 import org.xbib.elasticsearch.common.xcontent.xml.XmlXParams;
 
 import javax.xml.namespace.QName;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.xbib.elasticsearch.common.xcontent.XmlXContentFactory.xmlBuilder;
 
@@ -57,6 +90,17 @@ public class XmlBuilderTest extends Assert {
                         "xmlns:foaf=\"http://xmlns.com/foaf/0.1/\" xmlns:owl=\"http://www.w3.org/2002/07/owl#\" xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" xmlns:rdfs=\"http://www.w3.org/2000/01/rdf-schema#\" xmlns:xalan=\"http://xml.apache.org/xslt\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\"><dc:creator>John Doe</dc:creator></root>",
                 builder.string()
         );
+        // declared where they are first used
+        params.setDeclareAllNamespaces(false);
+        builder = xmlBuilder(params);
+        builder.startObject()
+                .field("dc:creator", "John Doe")
+                .endObject();
+        assertEquals(
+                "<root xmlns=\"http://elasticsearch.org/ns/1.0/\">" +
+                        "<dc:creator xmlns:dc=\"http://purl.org/dc/elements/1.1/\">John Doe</dc:creator></root>",
+                builder.string()
+        );
     }
 
     @Test
@@ -166,6 +210,10 @@ public class XmlBuilderTest extends Assert {
         byte[] buf = out.toByteArray();
         String s = convertToXml(params, buf, 0, buf.length, false);
         assertEquals(53194, s.length());
+        // the prefixes are used in many sibling elements, each of them repeats the declarations
+        params.setDeclareAllNamespaces(false);
+        s = convertToXml(params, buf, 0, buf.length, false);
+        assertEquals(71091, s.length());
     }
 
     @Test
@@ -183,17 +231,740 @@ public class XmlBuilderTest extends Assert {
         );
     }
 
+    @Test
+    public void testDynamicNamespacesAreNotShared() throws Exception {
+        XmlNamespaceContext context = XmlNamespaceContext.getDefaultInstance();
+        XmlXParams params = new XmlXParams(context);
+        InputStream in = getClass().getResourceAsStream("/dynamic-namespace.json");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Streams.copy(in, out);
+        byte[] buf = out.toByteArray();
+        String s = convertToXml(params, buf, 0, buf.length, false);
+        assertEquals(s, convertToXml(params, buf, 0, buf.length, false));
+        assertNull(context.getNamespaceURI("ns"));
+    }
+
+    @Test
+    public void testQNameCache() throws Exception {
+        XmlNamespaceContext context = XmlNamespaceContext.getDefaultInstance();
+        XmlXParams params = new XmlXParams(context);
+        for (int i = 0; i < 2; i++) {
+            XmlXContentBuilder builder = xmlBuilder(params);
+            builder.startObject().field("dc:creator", "John Doe").field("my field", "value").endObject();
+            assertEquals(
+                    "<root xmlns=\"http://elasticsearch.org/ns/1.0/\" xmlns:atom=\"http://www.w3.org/2005/Atom\" " +
+                            "xmlns:dc=\"http://purl.org/dc/elements/1.1/\" " +
+                            "xmlns:dcterms=\"http://purl.org/dc/terms/\" " +
+                            "xmlns:es=\"http://elasticsearch.org/ns/1.0/\" " +
+                            "xmlns:foaf=\"http://xmlns.com/foaf/0.1/\" xmlns:owl=\"http://www.w3.org/2002/07/owl#\" xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" xmlns:rdfs=\"http://www.w3.org/2000/01/rdf-schema#\" xmlns:xalan=\"http://xml.apache.org/xslt\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">" +
+                            "<dc:creator>John Doe</dc:creator><my_x0020_field>value</my_x0020_field></root>",
+                    builder.string());
+        }
+        assertEquals(2, params.getQNameCache().misses());
+        assertEquals(2, params.getQNameCache().hits());
+        context.addNamespace("abc", "http://localhost");
+        XmlXContentBuilder builder = xmlBuilder(params);
+        builder.startObject().field("dc:creator", "John Doe").endObject();
+        assertEquals(3, params.getQNameCache().misses());
+    }
+
+    @Test
+    public void testXmlFilterPath() throws Exception {
+        BytesReference source = XContentFactory.jsonBuilder().startObject()
+                .field("title", "Hello").startObject("author").field("name", "John").endObject().endObject().bytes();
+        for (String generator : new String[] { XmlXContent.JACKSON_GENERATOR, XmlXContent.UTF8_GENERATOR }) {
+            XContentBuilder builder = new XContentBuilder(XmlXContent.xmlXContent(generator), new BytesStreamOutput(),
+                    new String[] { "hits.hits._id", "**.name" });
+            builder.startObject().field("took", 1).startObject("hits").startArray("hits");
+            for (int i = 0; i < 2; i++) {
+                builder.startObject().field("_id", i).rawField("_source", source).endObject();
+            }
+            builder.endArray().endObject().endObject();
+            assertEquals("<root xmlns=\"http://elasticsearch.org/ns/1.0/\"><hits>"
+                    + "<hits><id>0</id><source><author><name>John</name></author></source></hits>"
+                    + "<hits><id>1</id><source><author><name>John</name></author></source></hits>"
+                    + "</hits></root>", builder.string());
+        }
+    }
+
+    @Test
+    public void testXmlRawFields() throws Exception {
+        byte[] json = "  {\"title\":\"Hello\",\"author\":{\"name\":\"John\"}}  ".getBytes(Charsets.UTF_8);
+        BytesReference smile = XContentFactory.smileBuilder().startObject().field("title", "Hello").endObject().bytes();
+        BytesReference xml = new BytesArray("<author><name>John</name></author>");
+        for (String generator : new String[] { XmlXContent.JACKSON_GENERATOR, XmlXContent.UTF8_GENERATOR }) {
+            XContentBuilder builder = new XContentBuilder(XmlXContent.xmlXContent(generator), new BytesStreamOutput());
+            builder.startObject()
+                    .rawField("json", new BytesArray(json, 2, json.length - 4))
+                    .rawField("stream", new ByteArrayInputStream(json, 2, json.length - 4))
+                    .rawField("smile", smile)
+                    .rawField("xml", xml)
+                    .field("value").rawValue(new BytesArray(json))
+                    .endObject();
+            assertEquals(generator, "<root xmlns=\"http://elasticsearch.org/ns/1.0/\">"
+                    + "<json><title>Hello</title><author><name>John</name></author></json>"
+                    + "<stream><title>Hello</title><author><name>John</name></author></stream>"
+                    + "<smile><title>Hello</title></smile>"
+                    + "<xml><name>John</name></xml>"
+                    + "<value><title>Hello</title><author><name>John</name></author></value>"
+                    + "</root>", builder.string());
+        }
+    }
+
+    @Test
+    public void testDeepStructures() throws Exception {
+        int depth = 100000;
+        StringBuilder json = new StringBuilder();
+        StringBuilder xml = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            json.append(i % 2 == 0 ? "{\"a\":" : "[");
+            xml.append(i % 2 == 0 ? "<a>" : "");
+        }
+        json.append("{\"x\":1}");
+        xml.append("<x>1</x>");
+        for (int i = depth - 1; i >= 0; i--) {
+            json.append(i % 2 == 0 ? "}" : "]");
+            xml.append(i % 2 == 0 ? "</a>" : "");
+        }
+        BytesReference source = new BytesArray(json.toString());
+        String expected = "<root xmlns=\"http://elasticsearch.org/ns/1.0/\">" + xml + "</root>";
+        for (String generator : new String[] { XmlXContent.JACKSON_GENERATOR, XmlXContent.UTF8_GENERATOR }) {
+            XContentBuilder builder = new XContentBuilder(XmlXContent.xmlXContent(generator), new BytesStreamOutput());
+            try (XContentParser parser = XContentFactory.xContent(source).createParser(source)) {
+                builder.copyCurrentStructure(parser);
+            }
+            assertEquals(generator, expected, builder.string());
+            builder = new XContentBuilder(XmlXContent.xmlXContent(generator), new BytesStreamOutput());
+            builder.rawValue(source);
+            assertEquals(generator, expected, builder.string());
+            builder = new XContentBuilder(XmlXContent.xmlXContent(generator), new BytesStreamOutput(),
+                    new String[] { "**.x" });
+            builder.rawValue(source);
+            assertEquals(generator, expected, builder.string());
+        }
+    }
+
+    @Test
+    public void testISO9075() throws Exception {
+        assertSame("name", ISO9075.encode("name"));
+        assertEquals("my_x0020_field", ISO9075.encode("my field"));
+        assertEquals("_x005f_x0041_", ISO9075.encode("_x0041_"));
+        assertEquals("a_x0041", ISO9075.encode("a_x0041"));
+        assertEquals("my field", ISO9075.decode("my_x0020_field"));
+        assertEquals("_x0041_", ISO9075.decode(ISO9075.encode("_x0041_")));
+        String name = "my f\u00e4ld";
+        byte[] b = new byte[ISO9075.maxEncodedLength(name.length())];
+        int len = ISO9075.encode(name, 0, name.length(), b, 0);
+        assertEquals("my_x0020_f\u00e4ld", new String(b, 0, len, "UTF-8"));
+        char[] c = new char[len];
+        assertEquals(name, new String(c, 0, ISO9075.decode(b, 0, len, c, 0)));
+        // a multi-byte character cut off by the end, a lead byte alone, and a stray continuation byte
+        byte[] e9 = "ab\u00e9".getBytes("UTF-8");
+        for (byte[] malformed : new byte[][] { Arrays.copyOf(e9, e9.length - 1), new byte[] { (byte) 0xc3 },
+                new byte[] { 'a', (byte) 0xa4 } }) {
+            try {
+                ISO9075.decode(malformed, 0, malformed.length, c, 0);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try {
+            ISO9075.decode(e9, 0, e9.length - 1, c, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected, the byte after the end is not read
+        }
+    }
+
+    @Test
+    public void testParseEncodedNames() throws Exception {
+        XmlXContentBuilder builder = xmlBuilder();
+        builder.startObject().field("my field", "value").endObject();
+        XContentParser parser = null;
+        try {
+            parser = XmlXContentFactory.xContent(XmlXContentType.XML).createParser(builder.string());
+            parser.nextToken();
+            XContentBuilder json = XContentFactory.jsonBuilder();
+            json.copyCurrentStructure(parser);
+            assertEquals("{\"my field\":\"value\"}", json.string());
+        } finally {
+            if (parser != null) {
+                parser.close();
+            }
+        }
+        try (XContentParser p = XmlXContentFactory.xContent(XmlXContentType.XML)
+                .createParser("<root><my_x0020_field>v</my_x0020_field></root>")) {
+            assertEquals(XContentParser.Token.START_OBJECT, p.nextToken());
+            assertEquals(XContentParser.Token.FIELD_NAME, p.nextToken());
+            assertEquals("my field", p.currentName());
+            assertEquals("my field", p.text());
+        }
+    }
+
+    @Test
+    public void testGeneratorFieldNames() throws Exception {
+        XmlXParams params = new XmlXParams(XmlNamespaceContext.getDefaultInstance());
+        for (String generator : new String[] { XmlXContent.JACKSON_GENERATOR, XmlXContent.UTF8_GENERATOR }) {
+            XmlXContentBuilder builder = xmlBuilder(params, generator);
+            XContentGenerator g = builder.generator();
+            g.writeStartObject();
+            g.writeStringField("my field", "value");
+            g.writeArrayFieldStart("my list");
+            g.writeString("a");
+            g.writeEndArray();
+            g.writeObjectFieldStart("my object");
+            g.writeStringField("dc:title", "t");
+            g.writeEndObject();
+            g.writeEndObject();
+            String xml = builder.string();
+            assertTrue(xml, xml.contains("<my_x0020_field>value</my_x0020_field>"));
+            assertTrue(xml, xml.contains("<my_x0020_list>a</my_x0020_list>"));
+            assertTrue(xml, xml.contains("<my_x0020_object><dc:title>t</dc:title></my_x0020_object>"));
+        }
+    }
+
+    @Test
+    public void testParseXml() throws Exception {
+        String xml = "<?xml version=\"1.0\"?>\n<!-- comment -->\n"
+                + "<record xmlns=\"http://www.loc.gov/MARC21/slim\" type=\"Bibliographic\">\n"
+                + "  <leader>00000nam a2200000 c 4500</leader>\n"
+                + "  <controlfield tag=\"001\">123</controlfield>\n"
+                + "  <datafield tag=\"245\" ind1=\"1\" ind2=\"0\">\n"
+                + "    <subfield code=\"a\">Title &amp; <![CDATA[<more>]]></subfield>\n"
+                + "  </datafield>\n"
+                + "  <empty/>\n"
+                + "</record>";
+        XContentParser parser = null;
+        try {
+            parser = XmlXContentFactory.xContent(XmlXContentType.XML).createParser(xml);
+            parser.nextToken();
+            XContentBuilder json = XContentFactory.jsonBuilder();
+            json.copyCurrentStructure(parser);
+            assertEquals("{\"type\":\"Bibliographic\",\"leader\":\"00000nam a2200000 c 4500\","
+                    + "\"controlfield\":{\"tag\":\"001\",\"\":\"123\"},"
+                    + "\"datafield\":{\"tag\":\"245\",\"ind1\":\"1\",\"ind2\":\"0\","
+                    + "\"subfield\":{\"code\":\"a\",\"\":\"Title & <more>\"}},"
+                    + "\"empty\":null}", json.string());
+        } finally {
+            if (parser != null) {
+                parser.close();
+            }
+        }
+        try {
+            parser = XmlXContentFactory.xContent(XmlXContentType.XML).createParser(xml);
+            assertEquals(XContentParser.Token.START_OBJECT, parser.nextToken());
+            assertEquals(3, parser.getTokenLocation().lineNumber);
+            assertEquals(XContentParser.Token.FIELD_NAME, parser.nextToken());
+            assertEquals(XContentParser.Token.VALUE_STRING, parser.nextToken());
+            assertEquals(XContentParser.Token.FIELD_NAME, parser.nextToken());
+            assertEquals("leader", parser.currentName());
+            assertEquals(XContentParser.Token.VALUE_STRING, parser.nextToken());
+            assertTrue(parser.hasTextCharacters());
+            assertEquals("00000nam a2200000 c 4500",
+                    new String(parser.textCharacters(), parser.textOffset(), parser.textLength()));
+            assertEquals(XContentParser.Token.FIELD_NAME, parser.nextToken());
+            assertEquals(XContentParser.Token.START_OBJECT, parser.nextToken());
+            parser.skipChildren();
+            assertEquals(XContentParser.Token.END_OBJECT, parser.currentToken());
+            assertEquals(XContentParser.Token.FIELD_NAME, parser.nextToken());
+            assertEquals("datafield", parser.currentName());
+        } finally {
+            if (parser != null) {
+                parser.close();
+            }
+        }
+    }
+
+    @Test
+    public void testParseXmlValueInference() throws Exception {
+        String xml = "<record><id>00123</id><count>42</count><big>9223372036854775807</big>"
+                + "<huge>9223372036854775808</huge><price>-1.5e3</price><flag>true</flag><text> 1 </text>"
+                + "<field tag=\"001\" ind=\"1\">false</field><field2 code=\"7\">8</field2></record>";
+        XContentParser parser = null;
+        try {
+            parser = XmlXContentFactory.xContent(XmlXContentType.XML).createParser(xml);
+            ((XmlXContentParser) parser).setValueInference(new XmlValueInference(Arrays.asList("field.tag", "field2")));
+            parser.nextToken();
+            XContentBuilder json = XContentFactory.jsonBuilder();
+            json.copyCurrentStructure(parser);
+            assertEquals("{\"id\":\"00123\",\"count\":42,\"big\":9223372036854775807,"
+                    + "\"huge\":\"9223372036854775808\",\"price\":-1500.0,\"flag\":true,\"text\":\" 1 \","
+                    + "\"field\":{\"tag\":\"001\",\"ind\":1,\"\":false},\"field2\":{\"code\":7,\"\":\"8\"}}", json.string());
+        } finally {
+            if (parser != null) {
+                parser.close();
+            }
+        }
+        try {
+            parser = XmlXContentFactory.xContent(XmlXContentType.XML).createParser(xml);
+            ((XmlXContentParser) parser).setValueInference(new XmlValueInference());
+            parser.nextToken();
+            parser.nextToken();
+            assertEquals(XContentParser.Token.VALUE_STRING, parser.nextToken());
+            parser.nextToken();
+            assertEquals(XContentParser.Token.VALUE_NUMBER, parser.nextToken());
+            assertEquals(XContentParser.NumberType.INT, parser.numberType());
+            assertEquals(42, parser.intValue());
+            parser.nextToken();
+            assertEquals(XContentParser.Token.VALUE_NUMBER, parser.nextToken());
+            assertEquals(XContentParser.NumberType.LONG, parser.numberType());
+            assertEquals(Long.MAX_VALUE, parser.longValue());
+        } finally {
+            if (parser != null) {
+                parser.close();
+            }
+        }
+    }
+
+    @Test
+    public void testParseXmlArrays() throws Exception {
+        String xml = "<record><a>1</a><a>2</a><b/><b/><c>3</c>"
+                + "<d x=\"1\"><e>4</e><e>5</e></d><d x=\"2\"/><d>6</d><f>7</f><a>8</a></record>";
+        XContentParser parser = null;
+        try {
+            parser = XmlXContentFactory.xContent(XmlXContentType.XML).createParser(xml);
+            parser.nextToken();
+            XContentBuilder json = XContentFactory.jsonBuilder();
+            json.copyCurrentStructure(parser);
+            assertEquals("{\"a\":[\"1\",\"2\"],\"b\":[null,null],\"c\":\"3\","
+                    + "\"d\":[{\"x\":\"1\",\"e\":[\"4\",\"5\"]},{\"x\":\"2\"},\"6\"],\"f\":\"7\",\"a\":\"8\"}", json.string());
+        } finally {
+            if (parser != null) {
+                parser.close();
+            }
+        }
+        try {
+            parser = XmlXContentFactory.xContent(XmlXContentType.XML).createParser(xml);
+            ((XmlXContentParser) parser).setArrayLookahead(0);
+            parser.nextToken();
+            XContentBuilder json = XContentFactory.jsonBuilder();
+            json.copyCurrentStructure(parser);
+            assertEquals("{\"a\":\"1\",\"a\":\"2\",\"b\":null,\"b\":null,\"c\":\"3\","
+                    + "\"d\":{\"x\":\"1\",\"e\":\"4\",\"e\":\"5\"},\"d\":{\"x\":\"2\"},\"d\":\"6\",\"f\":\"7\",\"a\":\"8\"}",
+                    json.string());
+        } finally {
+            if (parser != null) {
+                parser.close();
+            }
+        }
+        // the first element is larger than the lookahead, the second element is not
+        xml = "<record><a>0123456789</a><a>1</a><a>2</a></record>";
+        try {
+            parser = XmlXContentFactory.xContent(XmlXContentType.XML).createParser(xml);
+            ((XmlXContentParser) parser).setArrayLookahead(8);
+            parser.nextToken();
+            XContentBuilder json = XContentFactory.jsonBuilder();
+            json.copyCurrentStructure(parser);
+            assertEquals("{\"a\":\"0123456789\",\"a\":[\"1\",\"2\"]}", json.string());
+        } finally {
+            if (parser != null) {
+                parser.close();
+            }
+        }
+        // a long text is queued after the queue has been partly consumed
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append('x');
+        }
+        xml = "<record><a><b>1</b><b>2</b></a><c>" + sb + "</c><c>3</c></record>";
+        try {
+            parser = XmlXContentFactory.xContent(XmlXContentType.XML).createParser(xml);
+            parser.nextToken();
+            XContentBuilder json = XContentFactory.jsonBuilder();
+            json.copyCurrentStructure(parser);
+            assertEquals("{\"a\":{\"b\":[\"1\",\"2\"]},\"c\":[\"" + sb + "\",\"3\"]}", json.string());
+        } finally {
+            if (parser != null) {
+                parser.close();
+            }
+        }
+    }
+
+    @Test
+    public void testParseXmlStream() throws Exception {
+        byte separator = XmlXContent.xmlXContent().streamSeparator();
+        String xml = "<?xml version=\"1.0\"?><a><x>1</x><x>2</x></a>" + (char) separator
+                + "<?xml version=\"1.0\"?><b y=\"3\"/>" + (char) separator
+                + "<!-- comment --><c>4</c>";
+        XContentParser parser = null;
+        try {
+            parser = XmlXContentFactory.xContent(XmlXContentType.XML).createParser(xml);
+            StringBuilder sb = new StringBuilder();
+            while (parser.nextToken() != null) {
+                XContentBuilder json = XContentFactory.jsonBuilder();
+                json.copyCurrentStructure(parser);
+                sb.append(json.string()).append('\n');
+            }
+            assertEquals("{\"x\":[\"1\",\"2\"]}\n{\"y\":\"3\"}\n{\"\":\"4\"}\n", sb.toString());
+        } finally {
+            if (parser != null) {
+                parser.close();
+            }
+        }
+    }
+
+    @Test
+    public void testParseXmlRecycledBuffers() throws Exception {
+        StringBuilder sb = new StringBuilder("<a>");
+        for (int i = 0; i < 100; i++) {
+            sb.append("<b><c>").append(i).append("</c><c>long text ").append(i).append("</c>");
+        }
+        for (int i = 0; i < 100; i++) {
+            sb.append("</b>");
+        }
+        sb.append("</a>");
+        for (String xml : Arrays.asList(sb.toString(), "<a><b>1</b><c/></a>", sb.toString(), "<a><b>1</b><c/></a>")) {
+            try (XContentParser parser = XmlXContentFactory.xContent(XmlXContentType.XML).createParser(xml)) {
+                parser.nextToken();
+                XContentBuilder json = XContentFactory.jsonBuilder();
+                json.copyCurrentStructure(parser);
+                if (xml.length() < 100) {
+                    assertEquals("{\"b\":\"1\",\"c\":null}", json.string());
+                } else {
+                    assertTrue(json.string().startsWith("{\"b\":{\"c\":[\"0\",\"long text 0\"],\"b\":{\"c\":[\"1\","));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testParseXmlFile() throws Exception {
+        Path path = Files.createTempFile("test", ".xml");
+        try {
+            Files.write(path, "<a><b>\u00e4\u00f6\u00fc</b><c x=\"1\">2</c></a>".getBytes("UTF-8"));
+            try (XContentParser parser = XmlXContent.xmlXContent().createParser(path)) {
+                parser.nextToken();
+                XContentBuilder json = XContentFactory.jsonBuilder();
+                json.copyCurrentStructure(parser);
+                assertEquals("{\"b\":\"\u00e4\u00f6\u00fc\",\"c\":{\"x\":\"1\",\"\":\"2\"}}", json.string());
+            }
+            // windows smaller than a character
+            try (XContentParser parser = XmlXContent.xmlXContent().createParser(
+                    new MappedInputStream(FileChannel.open(path, StandardOpenOption.READ), 3))) {
+                parser.nextToken();
+                XContentBuilder json = XContentFactory.jsonBuilder();
+                json.copyCurrentStructure(parser);
+                assertEquals("{\"b\":\"\u00e4\u00f6\u00fc\",\"c\":{\"x\":\"1\",\"\":\"2\"}}", json.string());
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testSplitXmlRecords() throws Exception {
+        String xml = "<records xmlns:dc=\"http://purl.org/dc/elements/1.1/\">"
+                + "<record><?pi data?><dc:title>A</dc:title></record>"
+                + "<other><record x=\"1\"><dc:title>B</dc:title></record></other></records>";
+        final List<String> records = new ArrayList<>();
+        new XmlRecordSplitter("record").split(new ByteArrayInputStream(xml.getBytes("UTF-8")),
+                new XmlRecordSplitter.Listener() {
+                    @Override
+                    public void onRecord(BytesReference record) throws IOException {
+                        records.add(convertToJson(record));
+                    }
+                });
+        assertEquals(Arrays.asList("{\"title\":\"A\"}", "{\"x\":\"1\",\"title\":\"B\"}"), records);
+    }
+
+    @Test
+    public void testParallelSplitXmlRecords() throws Exception {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>"
+                + "<!DOCTYPE records [ <!ELEMENT records ANY> ]><records xmlns:dc=\"http://purl.org/dc/elements/1.1/\">");
+        for (int i = 0; i < 100; i++) {
+            sb.append("<record><!-- <record> --><dc:title>\u00e4 ").append(i)
+                    .append("<![CDATA[</record>]]></dc:title><record x=\"/>\"/></record>");
+        }
+        sb.append("</records>");
+        final byte[] xml = sb.toString().getBytes("ISO-8859-1");
+        final List<String> expected = new ArrayList<>();
+        new XmlRecordSplitter("record").split(new ByteArrayInputStream(xml), new XmlRecordSplitter.Listener() {
+            @Override
+            public void onRecord(BytesReference record) throws IOException {
+                expected.add(convertToJson(record));
+            }
+        });
+        assertEquals(100, expected.size());
+        ExecutorService executor = new ForkJoinPool(4);
+        try {
+            for (boolean ordered : new boolean[] { true, false }) {
+                final List<String> records = new ArrayList<>();
+                new XmlParallelRecordSplitter<String>("record", executor, 8, ordered).split(new ByteArrayInputStream(xml),
+                        new XmlParallelRecordSplitter.Converter<String>() {
+                            @Override
+                            public String convert(BytesReference record) throws IOException {
+                                return convertToJson(record);
+                            }
+                        },
+                        new XmlParallelRecordSplitter.Listener<String>() {
+                            @Override
+                            public void onResult(String result) {
+                                records.add(result);
+                            }
+                        });
+                if (!ordered) {
+                    Collections.sort(records);
+                    Collections.sort(expected);
+                }
+                assertEquals(expected, records);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelSplitCancelsOnFailure() throws Exception {
+        StringBuilder sb = new StringBuilder("<records>");
+        for (int i = 0; i < 10; i++) {
+            sb.append("<record>").append(i).append("</record>");
+        }
+        byte[] xml = sb.append("</records>").toString().getBytes("UTF-8");
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger converted = new AtomicInteger();
+        ExecutorService executor = new ForkJoinPool(2);
+        try {
+            new XmlParallelRecordSplitter<String>("record", executor, 16, false).split(new ByteArrayInputStream(xml),
+                    new XmlParallelRecordSplitter.Converter<String>() {
+                        @Override
+                        public String convert(BytesReference record) throws IOException {
+                            if (record.toUtf8().contains(">0<")) {
+                                try {
+                                    started.await();
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                                throw new IOException("malformed");
+                            }
+                            started.countDown();
+                            try {
+                                Thread.sleep(200L);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            converted.incrementAndGet();
+                            return record.toUtf8();
+                        }
+                    },
+                    new XmlParallelRecordSplitter.Listener<String>() {
+                        @Override
+                        public void onResult(String result) {
+                        }
+                    });
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().endsWith("malformed"));
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        // the records waiting for a thread when the split failed are not converted
+        assertTrue(converted.get() < 9);
+    }
+
+    @Test
+    public void testParallelHits() throws Exception {
+        XContentBuilder json = XContentFactory.jsonBuilder();
+        json.startObject().field("took", 1).startObject("hits").field("total", 100).startArray("hits");
+        for (int i = 0; i < 100; i++) {
+            json.startObject().field("_id", i).startObject("_source")
+                    .field("my field", "Hello World " + i).array("list", 1, 2, i).endObject().endObject();
+        }
+        json.endArray().endObject().endObject();
+        byte[] buf = json.bytes().toBytes();
+        XmlXParams params = new XmlXParams();
+        String s = convertToXml(params, buf, 0, buf.length, false);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (String generator : new String[] { XmlXContent.JACKSON_GENERATOR, XmlXContent.UTF8_GENERATOR }) {
+                XmlFragmentStream fragmentStream = new XmlFragmentStream(new BytesStreamOutput(), executor, 8, 0L);
+                XmlXContentBuilder builder = new XmlXContentBuilder(XmlXContent.xmlXContent(generator), fragmentStream);
+                ((AbstractXmlXContentGenerator) builder.generator()).setParams(params);
+                new XmlHitsTranscoder(fragmentStream).copy((AbstractXmlXContentGenerator) builder.generator(),
+                        new BytesArray(buf));
+                assertEquals(s, builder.string());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelSource() throws Exception {
+        XmlNamespaceContext context = XmlNamespaceContext.getDefaultInstance();
+        context.addNamespace("xbib", "http://xbib.org/");
+        XmlXParams params = new XmlXParams(context);
+        List<BytesReference> sources = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            XContentBuilder source = i % 2 == 0 ? XContentFactory.jsonBuilder() : XContentFactory.smileBuilder();
+            source.startObject().field("xbib:title", "Hello World " + i).array("list", 1, 2, i)
+                    .startObject("author").field("name", "J\u00f6rg").endObject().endObject();
+            sources.add(source.bytes());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (String generator : new String[] { XmlXContent.JACKSON_GENERATOR, XmlXContent.UTF8_GENERATOR }) {
+                String[] results = new String[2];
+                for (int n = 0; n < results.length; n++) {
+                    BytesStreamOutput out = new BytesStreamOutput();
+                    // the first ten sources stay below the threshold and are converted serially
+                    XmlFragmentStream fragmentStream = n == 0 ? null :
+                            new XmlFragmentStream(out, executor, 8, sources.get(0).length() * 10);
+                    XContentBuilder builder = new XContentBuilder(XmlXContent.xmlXContent(generator),
+                            fragmentStream != null ? fragmentStream : out);
+                    ((AbstractXmlXContentGenerator) builder.generator()).setParams(params)
+                            .setFragmentStream(fragmentStream);
+                    builder.startObject().startObject("hits").startArray("hits");
+                    for (int i = 0; i < sources.size(); i++) {
+                        builder.startObject().field("_id", i).rawField("_source", sources.get(i)).endObject();
+                    }
+                    builder.endArray().endObject().endObject();
+                    results[n] = builder.string();
+                }
+                assertTrue(results[0].contains("<id>99</id><source><xbib:title>Hello World 99"));
+                assertEquals(results[0], results[1]);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testUtf8Generator() throws Exception {
+        XmlNamespaceContext context = XmlNamespaceContext.getDefaultInstance();
+        context.addNamespace("bib","info:srw/cql-context-set/1/bib-v1/");
+        context.addNamespace("abc", "http://localhost/");
+        context.addNamespace("xbib", "http://xbib.org/");
+        context.addNamespace("lia", "http://xbib.org/namespaces/lia/");
+        XmlXParams params = new XmlXParams(context);
+        for (String resource : new String[] { "/test.json", "/dynamic-namespace.json" }) {
+            InputStream in = getClass().getResourceAsStream(resource);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Streams.copy(in, out);
+            byte[] buf = out.toByteArray();
+            for (boolean declareAll : new boolean[] { false, true }) {
+                params.setDeclareAllNamespaces(declareAll);
+                for (boolean pretty : new boolean[] { false, true }) {
+                    assertEquals(convertToXml(params, buf, 0, buf.length, pretty),
+                            convertToXml(params, buf, 0, buf.length, pretty, XmlXContent.UTF8_GENERATOR));
+                }
+            }
+        }
+        // per-document prefixes, also rebinding a prefix of the context, alternate their namespace URIs
+        for (boolean declareAll : new boolean[] { false, true }) {
+            params.setDeclareAllNamespaces(declareAll);
+            for (int i = 0; i < 4; i++) {
+                String uri = "http://example.org/" + (i % 2);
+                byte[] buf = ("{\"@context\":{\"ns\":\"" + uri + "\",\"dc\":\"" + uri + "\"},"
+                        + "\"ns:foo\":\"bar\",\"dc:title\":\"t\"}").getBytes("UTF-8");
+                String utf8 = convertToXml(params, buf, 0, buf.length, false, XmlXContent.UTF8_GENERATOR);
+                assertEquals(convertToXml(params, buf, 0, buf.length, false), utf8);
+                assertTrue(utf8.contains("xmlns:ns=\"" + uri + "\""));
+            }
+        }
+        params.setDeclareAllNamespaces(false);
+        for (boolean pretty : new boolean[] { false, true }) {
+            XmlXContentBuilder jackson = xmlBuilder(params);
+            XmlXContentBuilder utf8 = xmlBuilder(params, XmlXContent.UTF8_GENERATOR);
+            for (XmlXContentBuilder builder : new XmlXContentBuilder[] { jackson, utf8 }) {
+                if (pretty) {
+                    builder.prettyPrint();
+                }
+                builder.startObject()
+                        .field("dc:title", "a <b> & \"c\" ]]> \u00e4\u20ac\ud83d\ude00 \u0085 \r\n")
+                        .startObject("author").field("@name", "\"John\" <Doe>\t").field("@id", 1).endObject()
+                        .startObject("dc:creator").field("@id", 2).field("dc:name", "John").endObject()
+                        .field("my field", 1.0E10).field("float", 0.5f).field("long", Long.MIN_VALUE).field("bool", true)
+                        .array("list", 1, 2, 3).startArray("empty").endArray().startObject("object").endObject()
+                        .nullField("null").field("binary", new byte[100])
+                        .endObject();
+            }
+            assertEquals(jackson.string(), utf8.string());
+        }
+    }
+
+    @Test
+    public void testUtf8Numbers() throws Exception {
+        long[] longs = { 0L, 7L, -10L, 99L, 100L, 123456789L, 12345678901234L, Long.MAX_VALUE, Long.MIN_VALUE };
+        double[] doubles = { 0.0, -0.0, 1.0, -2.5, 0.1, 0.001, 9.99E-4, 100.0, 123.456, 0.30000000000000004,
+                1.2345678901234567, 9999999.999, 1.0E7, 1.0E10, Double.MIN_VALUE, Double.MAX_VALUE,
+                Double.NaN, Double.NEGATIVE_INFINITY, (double) 0.1f };
+        float[] floats = { 0.0f, 0.1f, -0.5f, 0.001f, 1.2345678f, 3.14159265f, 9999999.0f, 1.0E7f, Float.MAX_VALUE,
+                Float.NaN };
+        XmlXContentBuilder jackson = xmlBuilder();
+        XmlXContentBuilder utf8 = xmlBuilder(new XmlXParams(), XmlXContent.UTF8_GENERATOR);
+        for (XmlXContentBuilder builder : new XmlXContentBuilder[] { jackson, utf8 }) {
+            builder.startObject();
+            for (long l : longs) {
+                builder.startObject("long").field("@value", l).endObject().field("long", l);
+            }
+            for (double d : doubles) {
+                builder.startObject("double").field("@value", d).endObject().field("double", d);
+            }
+            for (float f : floats) {
+                builder.startObject("float").field("@value", f).endObject().field("float", f);
+            }
+            builder.endObject();
+        }
+        assertEquals(jackson.string(), utf8.string());
+        assertTrue(utf8.string().contains("value=\"123.456\"/><double>123.456</double>"));
+        assertTrue(utf8.string().contains("value=\"1.2345678\"/><float>1.2345678</float>"));
+    }
+
+    @Test
+    public void testUtf8Strings() throws Exception {
+        String text = "\u00e4 <\u20ac> <> & \ud83d\ude00 \u0085 ]]>";
+        char[] chars = ("--" + text + "--").toCharArray();
+        for (String generator : new String[] { XmlXContent.JACKSON_GENERATOR, XmlXContent.UTF8_GENERATOR }) {
+            XmlXContentBuilder builder = xmlBuilder(new XmlXParams(), generator);
+            builder.startObject()
+                    .field("bytes", new Text(new BytesArray(text.getBytes(Charsets.UTF_8))))
+                    .field("chars", chars, 2, text.length())
+                    .startObject("author").field("@name", new Text(new BytesArray(text.getBytes(Charsets.UTF_8))))
+                    .endObject()
+                    .endObject();
+            assertEquals(generator,
+                    "<root xmlns=\"http://elasticsearch.org/ns/1.0/\">" +
+                            "<bytes>\u00e4 &lt;\u20ac> &lt;&gt; &amp; \ud83d\ude00 &#x85; ]]&gt;</bytes>" +
+                            "<chars>\u00e4 &lt;\u20ac> &lt;&gt; &amp; \ud83d\ude00 &#x85; ]]&gt;</chars>" +
+                            "<author xmlns:wstxns1=\"http://elasticsearch.org/ns/1.0/\" " +
+                            "wstxns1:name=\"\u00e4 &lt;\u20ac> &lt;> &amp; \ud83d\ude00 \u0085 ]]>\"/></root>",
+                    builder.string());
+        }
+    }
+
+    public static String convertToJson(BytesReference xml) throws IOException {
+        XContentParser parser = null;
+        try {
+            parser = XmlXContentFactory.xContent(XmlXContentType.XML).createParser(xml);
+            parser.nextToken();
+            XContentBuilder builder = XContentFactory.jsonBuilder();
+            builder.copyCurrentStructure(parser);
+            return builder.string();
+        } finally {
+            if (parser != null) {
+                parser.close();
+            }
+        }
+    }
+
     public static String convertToXml(XmlXParams params, byte[] data, int offset, int length) throws IOException {
         return convertToXml(params, data, offset, length, false);
     }
 
     public static String convertToXml(XmlXParams params, byte[] data, int offset, int length, boolean prettyPrint) throws IOException {
+        return convertToXml(params, data, offset, length, prettyPrint, XmlXContent.JACKSON_GENERATOR);
+    }
+
+    public static String convertToXml(XmlXParams params, byte[] data, int offset, int length, boolean prettyPrint,
+                                      String generator) throws IOException {
         XmlXContentType xmlXContentType = XmlXContentFactory.xContentType(data, offset, length);
         XContentParser parser = null;
         try {
             parser = XmlXContentFactory.xContent(xmlXContentType).createParser(data, offset, length);
             parser.nextToken();
-            XmlXContentBuilder builder = XmlXContentFactory.xmlBuilder(params);
+            XmlXContentBuilder builder = xmlBuilder(params, generator);
             if (prettyPrint) {
                 builder.prettyPrint();
             }
@@ -3,18 +3,30 @@ package org.xbib.elasticsearch.xml;
 import org.elasticsearch.action.admin.cluster.node.info.NodesInfoAction;
 import org.elasticsearch.action.admin.cluster.node.info.NodesInfoRequestBuilder;
 import org.elasticsearch.action.admin.cluster.node.info.NodesInfoResponse;
+import org.elasticsearch.action.admin.cluster.node.stats.NodeStats;
+import org.elasticsearch.action.admin.cluster.node.stats.NodesStatsResponse;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
 import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.threadpool.ThreadPoolStats;
 import org.junit.Test;
+import org.xbib.elasticsearch.action.xml.XmlBulkLoader;
+import org.xbib.elasticsearch.rest.xml.XmlService;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Random;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class XmlPluginTest extends NodeTestUtils {
@@ -53,6 +65,203 @@ public class XmlPluginTest extends NodeTestUtils {
         reader.close();
     }
 
+    @Test
+    public void testGetResponse() throws Exception {
+        Client client = client("1");
+        client.index(new IndexRequest("test", "test", "1")
+                .source("{\"name\":\"Hello World\"}")).actionGet();
+        InetSocketTransportAddress httpAddress = findHttpAddress(client);
+        if (httpAddress == null) {
+            throw new IllegalArgumentException("no HTTP address found");
+        }
+        URL base = new URL("http://" + httpAddress.getHost() + ":" + httpAddress.getPort());
+        URL url = new URL(base, "/test/test/1?xml");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        assertEquals("text/xml; charset=UTF-8", connection.getContentType());
+        BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+        String line;
+        if ((line = reader.readLine()) != null) {
+            assertTrue(line.startsWith("<root xmlns=\"http://elasticsearch.org/ns/1.0/\">"));
+            assertTrue(line.contains("<source><name>Hello World</name></source>"));
+        }
+        reader.close();
+        client.admin().indices().delete(new DeleteIndexRequest("test"));
+    }
+
+    @Test
+    public void testFilterPath() throws Exception {
+        Client client = client("1");
+        client.index(new IndexRequest("test", "test", "1")
+                .source("{\"name\":\"Hello World\"}").refresh(true)).actionGet();
+        InetSocketTransportAddress httpAddress = findHttpAddress(client);
+        if (httpAddress == null) {
+            throw new IllegalArgumentException("no HTTP address found");
+        }
+        URL base = new URL("http://" + httpAddress.getHost() + ":" + httpAddress.getPort());
+        URL url = new URL(base, "/test/test/_search?xml&filter_path=hits.hits._id");
+        BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+        String line = reader.readLine();
+        assertEquals("<root xmlns=\"http://elasticsearch.org/ns/1.0/\"><hits><hits><id>1</id></hits></hits></root>", line);
+        reader.close();
+        client.admin().indices().delete(new DeleteIndexRequest("test"));
+    }
+
+    @Test
+    public void testXmlBulk() throws Exception {
+        Client client = client("1");
+        InetSocketTransportAddress httpAddress = findHttpAddress(client);
+        if (httpAddress == null) {
+            throw new IllegalArgumentException("no HTTP address found");
+        }
+        URL base = new URL("http://" + httpAddress.getHost() + ":" + httpAddress.getPort());
+        URL url = new URL(base, "/test/test/_xml/_bulk?record=book&id=isbn&actions=2");
+        StringBuilder sb = new StringBuilder("<books xmlns:dc=\"http://purl.org/dc/elements/1.1/\">");
+        for (int i = 0; i < 5; i++) {
+            sb.append("<book><isbn>").append(i).append("</isbn><dc:title>Title ").append(i).append("</dc:title></book>");
+        }
+        sb.append("</books>");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.getOutputStream().write(sb.toString().getBytes("UTF-8"));
+        assertEquals(200, connection.getResponseCode());
+        BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+        String line = reader.readLine();
+        assertTrue(line.contains("\"records\":5"));
+        assertTrue(line.contains("\"failures\":0"));
+        reader.close();
+        GetResponse getResponse = client.get(new GetRequest("test", "test", "3")).actionGet();
+        assertTrue(getResponse.isExists());
+        assertEquals("Title 3", getResponse.getSource().get("title"));
+        // index and type as parameters
+        url = new URL(base, "/_xml/_bulk?index=test&type=test&record=book&id=isbn");
+        connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.getOutputStream().write(sb.toString().getBytes("UTF-8"));
+        assertEquals(200, connection.getResponseCode());
+        connection.getInputStream().close();
+        client.admin().indices().delete(new DeleteIndexRequest("test"));
+    }
+
+    @Test
+    public void testXmlBulkMalformed() throws Exception {
+        Client client = client("1");
+        InetSocketTransportAddress httpAddress = findHttpAddress(client);
+        if (httpAddress == null) {
+            throw new IllegalArgumentException("no HTTP address found");
+        }
+        URL base = new URL("http://" + httpAddress.getHost() + ":" + httpAddress.getPort());
+        URL url = new URL(base, "/test/test/_xml/_bulk?record=book&id=isbn");
+        String xml = "<books><book><isbn>1</isbn></book><book><isbn>2</isbn></books>";
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.getOutputStream().write(xml.getBytes("UTF-8"));
+        assertEquals(400, connection.getResponseCode());
+        BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getErrorStream(), "UTF-8"));
+        String line = reader.readLine();
+        assertTrue(line.contains("\"status\":400"));
+        assertTrue(line.contains("\"records\":1"));
+        reader.close();
+        GetResponse getResponse = client.get(new GetRequest("test", "test", "1")).actionGet();
+        assertTrue(getResponse.isExists());
+        client.admin().indices().delete(new DeleteIndexRequest("test"));
+    }
+
+    @Test
+    public void testXmlParallelBulk() throws Exception {
+        Client client = client("1");
+        InetSocketTransportAddress httpAddress = findHttpAddress(client);
+        if (httpAddress == null) {
+            throw new IllegalArgumentException("no HTTP address found");
+        }
+        URL base = new URL("http://" + httpAddress.getHost() + ":" + httpAddress.getPort());
+        URL url = new URL(base, "/test/test/_xml/_bulk?record=book&id=isbn&actions=10&parallelism=4&ordered=false");
+        StringBuilder sb = new StringBuilder("<books xmlns:dc=\"http://purl.org/dc/elements/1.1/\">");
+        for (int i = 0; i < 100; i++) {
+            sb.append("<book><isbn>").append(i).append("</isbn><dc:title>Title ").append(i).append("</dc:title></book>");
+        }
+        sb.append("</books>");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.getOutputStream().write(sb.toString().getBytes("UTF-8"));
+        assertEquals(200, connection.getResponseCode());
+        BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+        String line = reader.readLine();
+        assertTrue(line.contains("\"records\":100"));
+        assertTrue(line.contains("\"failures\":0"));
+        reader.close();
+        GetResponse getResponse = client.get(new GetRequest("test", "test", "42")).actionGet();
+        assertTrue(getResponse.isExists());
+        assertEquals("Title 42", getResponse.getSource().get("title"));
+        // more parallelism than the bulk pool has threads is rejected
+        url = new URL(base, "/test/test/_xml/_bulk?record=book&parallelism=1000");
+        connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.getOutputStream().write(sb.toString().getBytes("UTF-8"));
+        assertEquals(400, connection.getResponseCode());
+        client.admin().indices().delete(new DeleteIndexRequest("test"));
+    }
+
+    @Test
+    public void testXmlStreamBulk() throws Exception {
+        Client client = client("1");
+        InetSocketTransportAddress httpAddress = findHttpAddress(client);
+        if (httpAddress == null) {
+            throw new IllegalArgumentException("no HTTP address found");
+        }
+        URL base = new URL("http://" + httpAddress.getHost() + ":" + httpAddress.getPort());
+        URL url = new URL(base, "/test/test/_bulk?xml&refresh=true");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3; i++) {
+            sb.append("<action><index><_id>").append(i).append("</_id></index></action>\n")
+                    .append("<doc><title>Title ").append(i).append("</title></doc>\n");
+        }
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.getOutputStream().write(sb.toString().getBytes("UTF-8"));
+        assertEquals(200, connection.getResponseCode());
+        BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+        String line = reader.readLine();
+        assertTrue(line.contains("<errors>false</errors>"));
+        reader.close();
+        GetResponse getResponse = client.get(new GetRequest("test", "test", "2")).actionGet();
+        assertTrue(getResponse.isExists());
+        assertEquals("Title 2", getResponse.getSource().get("title"));
+        client.admin().indices().delete(new DeleteIndexRequest("test"));
+    }
+
+    @Test
+    public void testXmlBulkLoader() throws Exception {
+        Client client = client("1");
+        Path path = Files.createTempFile("books", ".xml");
+        try {
+            StringBuilder sb = new StringBuilder("<books>");
+            for (int i = 0; i < 5; i++) {
+                sb.append("<book><isbn>").append(i).append("</isbn><title>Title ").append(i).append("</title></book>");
+            }
+            sb.append("</books>");
+            Files.write(path, sb.toString().getBytes("UTF-8"));
+            XmlBulkLoader.Result result = new XmlBulkLoader(client)
+                    .setRecord("book")
+                    .setId("isbn")
+                    .setActions(2)
+                    .load("test", "test", path);
+            assertEquals(5, result.getRecords());
+            assertEquals(0, result.getFailures());
+        } finally {
+            Files.delete(path);
+        }
+        GetResponse getResponse = client.get(new GetRequest("test", "test", "4")).actionGet();
+        assertTrue(getResponse.isExists());
+        assertEquals("Title 4", getResponse.getSource().get("title"));
+        client.admin().indices().delete(new DeleteIndexRequest("test"));
+    }
+
     @Test
     public void testBigAndFatResponse() throws Exception {
         Client client = client("1");
@@ -78,6 +287,52 @@ public class XmlPluginTest extends NodeTestUtils {
         client.admin().indices().delete(new DeleteIndexRequest("test"));
     }
 
+    @Test
+    public void testParallelSearchHits() throws Exception {
+        Client client = client("1");
+        BulkRequestBuilder bulk = client.prepareBulk();
+        for (int i = 0; i < 5000; i++) {
+            bulk.add(new IndexRequest("parallel", "test", Integer.toString(i))
+                    .source("{\"title\":\"" + randomString(100) + "\",\"author\":{\"name\":\"" + randomString(32)
+                            + "\"},\"subject\":[\"" + randomString(64) + "\",\"" + randomString(64) + "\"]}"));
+        }
+        client.bulk(bulk.request()).actionGet();
+        client.admin().indices().refresh(new RefreshRequest("parallel")).actionGet();
+        InetSocketTransportAddress httpAddress = findHttpAddress(client);
+        if (httpAddress == null) {
+            throw new IllegalArgumentException("no HTTP address found");
+        }
+        // more than 1mb of _source, the default xml.parallel_threshold
+        URL base = new URL("http://" + httpAddress.getHost() + ":" + httpAddress.getPort());
+        URL url = new URL(base, "/parallel/test/_search?xml&size=5000");
+        BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+        StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            sb.append(line);
+        }
+        reader.close();
+        String xml = sb.toString();
+        assertTrue(xml.startsWith("<root"));
+        assertTrue(xml.endsWith("</root>"));
+        int count = 0;
+        for (int pos = xml.indexOf("<source><title>"); pos >= 0; pos = xml.indexOf("<source><title>", pos + 1)) {
+            count++;
+        }
+        assertEquals(5000, count);
+        long completed = 0L;
+        NodesStatsResponse stats = client.admin().cluster().prepareNodesStats().setThreadPool(true).get();
+        for (NodeStats nodeStats : stats) {
+            for (ThreadPoolStats.Stats poolStats : nodeStats.getThreadPool()) {
+                if (XmlService.PARALLEL_THREAD_POOL_NAME.equals(poolStats.getName())) {
+                    completed += poolStats.getCompleted();
+                }
+            }
+        }
+        assertTrue(completed > 0L);
+        client.admin().indices().delete(new DeleteIndexRequest("parallel"));
+    }
+
     private static Random random = new Random();
 
     private static char[] numbersAndLetters = ("0123456789abcdefghijklmnopqrstuvwxyz").toCharArray();
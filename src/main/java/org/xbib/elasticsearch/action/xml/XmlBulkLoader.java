@@ -0,0 +1,333 @@
+package org.xbib.elasticsearch.action.xml;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.xbib.elasticsearch.common.xcontent.xml.MappedInputStream;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlParallelRecordSplitter;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlRecordSplitter;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlValueInference;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlXContent;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlXContentParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the records of an XML stream into an index.
+ *
+ * The records are split from the stream one after another and converted to index requests
+ * for a bulk processor. The bulk processor blocks if the configured number of concurrent bulk requests
+ * is in flight, so not more than a few batches are held in memory. Files are read from memory mapped
+ * windows, so they can be larger than the heap.
+ *
+ * With a parallelism greater than one, the records are split by a {@link XmlParallelRecordSplitter}
+ * and converted by a fork-join pool, in the order of the records or in the order they are done. The pool
+ * can be shared by several loaders, otherwise a pool is created for each load.
+ */
+public class XmlBulkLoader {
+
+    private final ESLogger logger = ESLoggerFactory.getLogger(XmlBulkLoader.class.getName());
+
+    private final Client client;
+
+    private String record = "record";
+
+    private String id;
+
+    private int concurrency = 1;
+
+    private int actions = 1000;
+
+    private ByteSizeValue size = new ByteSizeValue(5, ByteSizeUnit.MB);
+
+    private TimeValue timeout = TimeValue.timeValueMinutes(5);
+
+    private XmlValueInference valueInference;
+
+    private int arrayLookahead = XmlXContentParser.DEFAULT_ARRAY_LOOKAHEAD;
+
+    private int parallelism = 1;
+
+    private boolean ordered = true;
+
+    private ExecutorService executor;
+
+    private Result result;
+
+    public XmlBulkLoader(Client client) {
+        this.client = client;
+    }
+
+    /**
+     * Sets the local name of the record element.
+     */
+    public XmlBulkLoader setRecord(String record) {
+        this.record = record;
+        return this;
+    }
+
+    /**
+     * Sets the field of the record with the document ID. Without it, IDs are generated.
+     */
+    public XmlBulkLoader setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    /**
+     * Sets the number of concurrent bulk requests.
+     */
+    public XmlBulkLoader setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Sets the number of documents in a bulk request.
+     */
+    public XmlBulkLoader setActions(int actions) {
+        this.actions = actions;
+        return this;
+    }
+
+    /**
+     * Sets the maximum size of a bulk request.
+     */
+    public XmlBulkLoader setSize(ByteSizeValue size) {
+        this.size = size;
+        return this;
+    }
+
+    /**
+     * Sets the time to wait for outstanding bulk requests.
+     */
+    public XmlBulkLoader setTimeout(TimeValue timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    public XmlBulkLoader setValueInference(XmlValueInference valueInference) {
+        this.valueInference = valueInference;
+        return this;
+    }
+
+    public XmlBulkLoader setArrayLookahead(int arrayLookahead) {
+        this.arrayLookahead = arrayLookahead;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads converting records. With one thread, records are converted while they are split.
+     */
+    public XmlBulkLoader setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets the executor converting records in parallel, for example a pool shared by several loaders.
+     * The parallelism is then the number of records being converted by this loader at a time.
+     */
+    public XmlBulkLoader setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Sets if records converted in parallel are indexed in the order of the stream.
+     */
+    public XmlBulkLoader setOrdered(boolean ordered) {
+        this.ordered = ordered;
+        return this;
+    }
+
+    /**
+     * The result of the current or the last load, also if the load failed. The records read before
+     * a failure have been handed to the bulk processor, and are indexed.
+     *
+     * @return the result, or null before the first load
+     */
+    public Result getResult() {
+        return result;
+    }
+
+    /**
+     * Loads the records of an XML file.
+     *
+     * @param index the index
+     * @param type the type
+     * @param path the path of the file
+     * @return the result
+     * @throws IOException if the file can not be read or is not well-formed
+     * @throws InterruptedException if interrupted while waiting for bulk requests
+     */
+    public Result load(String index, String type, Path path) throws IOException, InterruptedException {
+        try (InputStream in = MappedInputStream.open(path)) {
+            return load(index, type, in);
+        }
+    }
+
+    /**
+     * Loads the records of an XML stream.
+     *
+     * @param index the index
+     * @param type the type
+     * @param in the stream
+     * @return the result
+     * @throws IOException if the stream can not be read or is not well-formed
+     * @throws InterruptedException if interrupted while waiting for bulk requests
+     */
+    public Result load(final String index, final String type, InputStream in) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        final Result result = new Result();
+        this.result = result;
+        final BulkProcessor bulkProcessor = BulkProcessor.builder(client, new Listener(result))
+                .setName("xml")
+                .setConcurrentRequests(concurrency)
+                .setBulkActions(actions)
+                .setBulkSize(size)
+                .build();
+        try {
+            if (parallelism > 1) {
+                loadParallel(index, type, in, bulkProcessor, result);
+            } else {
+                new XmlRecordSplitter(record).split(in, new XmlRecordSplitter.Listener() {
+                    @Override
+                    public void onRecord(BytesReference record) throws IOException {
+                        result.records.incrementAndGet();
+                        bulkProcessor.add(indexRequest(index, type, record));
+                    }
+                });
+            }
+        } finally {
+            if (!bulkProcessor.awaitClose(timeout.millis(), TimeUnit.MILLISECONDS)) {
+                logger.warn("timeout while waiting for bulk requests of {}/{}", index, type);
+            }
+            result.took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+        return result;
+    }
+
+    private void loadParallel(final String index, final String type, InputStream in,
+                              final BulkProcessor bulkProcessor, final Result result) throws IOException {
+        ExecutorService pool = executor != null ? executor : new ForkJoinPool(parallelism);
+        try {
+            // keep all threads busy, but do not let the results pile up
+            new XmlParallelRecordSplitter<IndexRequest>(record, pool, 4 * parallelism, ordered).split(in,
+                    new XmlParallelRecordSplitter.Converter<IndexRequest>() {
+                        @Override
+                        public IndexRequest convert(BytesReference record) throws IOException {
+                            return indexRequest(index, type, record);
+                        }
+                    },
+                    new XmlParallelRecordSplitter.Listener<IndexRequest>() {
+                        @Override
+                        public void onResult(IndexRequest request) {
+                            result.records.incrementAndGet();
+                            bulkProcessor.add(request);
+                        }
+                    });
+        } finally {
+            // a shared executor is left to its owner, the splitter has cancelled the pending and running tasks of this load
+            if (pool != executor) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private IndexRequest indexRequest(String index, String type, BytesReference record) throws IOException {
+        BytesReference source = convert(record);
+        String recordId = null;
+        if (id != null) {
+            Object value = XContentMapValues.extractValue(id, XContentHelper.convertToMap(source, false).v2());
+            recordId = value != null ? value.toString() : null;
+        }
+        return new IndexRequest(index, type, recordId).source(source);
+    }
+
+    private BytesReference convert(BytesReference record) throws IOException {
+        try (XContentParser parser = XmlXContent.xmlXContent().createParser(record)) {
+            ((XmlXContentParser) parser).setValueInference(valueInference)
+                    .setArrayLookahead(arrayLookahead);
+            parser.nextToken();
+            XContentBuilder builder = XContentFactory.jsonBuilder();
+            builder.copyCurrentStructure(parser);
+            return builder.bytes();
+        }
+    }
+
+    /**
+     * The result of loading records.
+     */
+    public static class Result {
+
+        private final AtomicLong records = new AtomicLong();
+
+        private final AtomicLong failures = new AtomicLong();
+
+        private long took;
+
+        public long getRecords() {
+            return records.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public long getTook() {
+            return took;
+        }
+    }
+
+    private class Listener implements BulkProcessor.Listener {
+
+        private final Result result;
+
+        Listener(Result result) {
+            this.result = result;
+        }
+
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            if (response.hasFailures()) {
+                for (BulkItemResponse item : response.getItems()) {
+                    if (item.isFailed()) {
+                        result.failures.incrementAndGet();
+                    }
+                }
+                logger.warn("bulk [{}] has failures: {}", executionId, response.buildFailureMessage());
+            }
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            result.failures.addAndGet(request.numberOfActions());
+            logger.error("bulk [{}] failed", failure, executionId);
+        }
+    }
+}
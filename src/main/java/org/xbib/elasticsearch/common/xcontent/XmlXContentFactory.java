@@ -74,6 +74,13 @@ public class XmlXContentFactory {
         return XmlXContent.contentBuilder(params);
     }
 
+    /**
+     * Constructs a new xml builder using XML, written by the given generator, "jackson" or "utf8".
+     */
+    public static XmlXContentBuilder xmlBuilder(XmlXParams params, String generator) throws IOException {
+        return XmlXContent.contentBuilder(params, generator);
+    }
+
     /**
      * Constructs a new xml builder that will output the result into the provided output stream.
      */
@@ -81,6 +88,13 @@ public class XmlXContentFactory {
         return new XmlXContentBuilder(XmlXContent.xmlXContent(), os);
     }
 
+    /**
+     * Constructs a new xml builder with XML parameters that will output the result into the provided output stream.
+     */
+    public static XmlXContentBuilder xmlBuilder(XmlXParams params, OutputStream os) throws IOException {
+        return XmlXContent.contentBuilder(params, os);
+    }
+
     /**
      * Constructs a xcontent builder that will output the result into the provided output stream.
      */
@@ -0,0 +1,568 @@
+package org.xbib.elasticsearch.common.xcontent.xml;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentGenerator;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentString;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import javax.xml.namespace.QName;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Base class of the XML content generators.
+ *
+ * It holds the parameters and the namespace state of a document, and maps JSON names to QNames.
+ * Writing the XML is left to the subclasses.
+ */
+public abstract class AbstractXmlXContentGenerator implements XContentGenerator {
+
+    protected final static int GUESS_HEADER_LENGTH = 20;
+
+    // the factories of ES are not visible, these read like them. The names are canonical strings within
+    // a document already, interning them all would make wide documents contend on the intern cache of Jackson.
+    private final static JsonFactory jsonFactory = new JsonFactory();
+
+    private final static SmileFactory smileFactory = new SmileFactory();
+
+    static {
+        jsonFactory.configure(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES, true);
+        jsonFactory.configure(JsonParser.Feature.ALLOW_COMMENTS, true);
+        jsonFactory.configure(JsonFactory.Feature.FAIL_ON_SYMBOL_HASH_OVERFLOW, false);
+        jsonFactory.configure(JsonFactory.Feature.INTERN_FIELD_NAMES, false);
+        smileFactory.configure(JsonFactory.Feature.FAIL_ON_SYMBOL_HASH_OVERFLOW, false);
+        smileFactory.configure(JsonFactory.Feature.INTERN_FIELD_NAMES, false);
+    }
+
+    // generators without parameters share the default parameters and their QName cache
+    private static final XmlXParams DEFAULT_PARAMS = new XmlXParams();
+
+    protected XmlXParams params;
+
+    private XContentType contentType;
+
+    protected boolean started;
+
+    protected String fragment;
+
+    protected Map<String, String> rootNamespaces;
+
+    protected boolean context;
+
+    protected String prefix;
+
+    private Map<String, String> namespaces;
+
+    private XmlFragmentStream fragmentStream;
+
+    protected AbstractXmlXContentGenerator() {
+        this.params = DEFAULT_PARAMS;
+        this.started = false;
+        this.context = false;
+        this.prefix = null;
+    }
+
+    public AbstractXmlXContentGenerator setParams(XmlXParams params) {
+        this.params = params;
+        return this;
+    }
+
+    public XmlXParams getParams() {
+        return params;
+    }
+
+    /**
+     * There is no XML in {@link XContentType}, but a REST response built from an XContentBuilder
+     * requires a content type. With this, the caller can declare a content type to be reported,
+     * and is responsible to replace it by an XML content type before the response is sent.
+     *
+     * @param contentType the content type to report
+     * @return this generator
+     */
+    public AbstractXmlXContentGenerator setContentType(XContentType contentType) {
+        this.contentType = contentType;
+        return this;
+    }
+
+    /**
+     * Lets this generator write a fragment of an enclosing XML document. The fragment element gets the given
+     * name instead of the root element name, and the given namespaces are assumed to be declared
+     * on the root element of the enclosing document.
+     *
+     * @param name the JSON name of the fragment element
+     * @param rootNamespaces the namespaces declared on the root element of the enclosing document
+     * @return this generator
+     */
+    public AbstractXmlXContentGenerator setFragment(String name, Map<String, String> rootNamespaces) {
+        this.fragment = name;
+        this.rootNamespaces = rootNamespaces;
+        return this;
+    }
+
+    /**
+     * Lets this generator hand raw fields over to the given output, which converts them in parallel.
+     * The output must be the output of this generator.
+     *
+     * @param fragmentStream the output of this generator
+     * @return this generator
+     */
+    public AbstractXmlXContentGenerator setFragmentStream(XmlFragmentStream fragmentStream) {
+        this.fragmentStream = fragmentStream;
+        return this;
+    }
+
+    /**
+     * The namespaces this generator has declared on the root element.
+     *
+     * @return a map of prefixes and namespace URIs
+     */
+    public Map<String, String> getRootNamespaces() {
+        return rootNamespaces;
+    }
+
+    public XmlNamespaceContext getNamespaceContext() {
+        return params.getNamespaceContext();
+    }
+
+    /**
+     * The XML content that creates generators like this one, for example for writing fragments.
+     *
+     * @return the XML content
+     */
+    public abstract XmlXContent xContent();
+
+    /**
+     * Writes an XML fragment, created by a generator in fragment mode, into the output of this generator.
+     *
+     * @param fragment the UTF-8 bytes of the XML fragment
+     * @throws IOException if the fragment can not be written
+     */
+    public abstract void writeFragment(BytesReference fragment) throws IOException;
+
+    @Override
+    public XContentType contentType() {
+        //return XmlXContentType.XML;
+        return contentType;
+    }
+
+    @Override
+    public void usePrintLineFeedAtEnd() {
+        // nothing here
+    }
+
+    @Override
+    public void writeFieldName(String name) throws IOException {
+        writeFieldNameXml(name);
+    }
+
+    @Override
+    public void writeFieldName(XContentString name) throws IOException {
+        writeFieldNameXml(name.getValue());
+    }
+
+    protected void writeFieldNameXml(String name) throws IOException {
+        if (!context) {
+            this.context = "@context".equals(name);
+            this.prefix = null;
+        }
+        if (name.startsWith("@")) {
+            setNextIsAttribute();
+        } else if (context) {
+            prefix = name;
+        }
+        writeName(toQName(name));
+    }
+
+    @Override
+    public void writeRawField(String fieldName, InputStream content) throws IOException {
+        writeFieldNameXml(fieldName);
+        copyRaw(content);
+    }
+
+    @Override
+    public void writeRawField(String fieldName, BytesReference content) throws IOException {
+        if (fragmentStream != null && !context && !fieldName.startsWith("@")
+                && fragmentStream.isParallel(content.length()) && submitFragment(fieldName, content)) {
+            return;
+        }
+        writeFieldNameXml(fieldName);
+        copyRaw(content);
+    }
+
+    /**
+     * Hands a raw JSON or Smile object over to the fragment stream. The parser is created here, so only
+     * objects are handed over, and the fragment gets the namespaces of the root element.
+     *
+     * @return false if the content is not a JSON or Smile object
+     */
+    private boolean submitFragment(String fieldName, BytesReference content) throws IOException {
+        JsonFactory factory = jacksonFactory(XContentFactory.xContentType(content));
+        if (factory == null || rootNamespaces == null) {
+            return false;
+        }
+        JsonParser parser = createParser(factory, content);
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            parser.close();
+            return false;
+        }
+        // closes a pending start element and moves the output written so far to the stream
+        writeFragment(BytesArray.EMPTY);
+        fragmentStream.submit(new XmlFragment(xContent(), params, fieldName, rootNamespaces, parser, content.length()));
+        return true;
+    }
+
+    /**
+     * Raw values are copied like raw fields, because raw JSON would not be XML.
+     */
+    @Override
+    public void writeRawValue(BytesReference content) throws IOException {
+        copyRaw(content);
+    }
+
+    /**
+     * Copies raw content, which is mostly JSON _source. The content type is guessed once, and JSON or Smile
+     * are read by a Jackson parser directly, YAML or CBOR by an XContent parser. Other content is taken as XML.
+     *
+     * @param content the raw content
+     * @throws IOException if the content can not be copied
+     */
+    protected void copyRaw(BytesReference content) throws IOException {
+        XContentType xContentType = XContentFactory.xContentType(content);
+        JsonFactory factory = jacksonFactory(xContentType);
+        if (factory != null) {
+            try (JsonParser parser = createParser(factory, content)) {
+                parser.nextToken();
+                copyJson(parser);
+            }
+        } else if (xContentType != null) {
+            try (XContentParser parser = XContentFactory.xContent(xContentType).createParser(content)) {
+                parser.nextToken();
+                copyCurrentStructure(this, parser);
+            }
+        } else {
+            try (JsonParser parser = createParser(XmlXContent.xmlFactory(), content)) {
+                parser.nextToken();
+                copyXml(parser);
+            }
+        }
+    }
+
+    protected void copyRaw(InputStream content) throws IOException {
+        if (!content.markSupported()) {
+            content = new BufferedInputStream(content);
+        }
+        content.mark(GUESS_HEADER_LENGTH);
+        XContentType xContentType = XContentFactory.xContentType(content);
+        content.reset();
+        JsonFactory factory = jacksonFactory(xContentType);
+        if (factory != null) {
+            try (JsonParser parser = factory.createParser(content)) {
+                parser.nextToken();
+                copyJson(parser);
+            }
+        } else if (xContentType != null) {
+            try (XContentParser parser = XContentFactory.xContent(xContentType).createParser(content)) {
+                parser.nextToken();
+                copyCurrentStructure(this, parser);
+            }
+        } else {
+            try (JsonParser parser = XmlXContent.xmlFactory().createParser(content)) {
+                parser.nextToken();
+                copyXml(parser);
+            }
+        }
+    }
+
+    /**
+     * Copies the current structure of a JSON or Smile parser. The tokens are the same as the XContent parser
+     * of ES would report, but they are taken from the Jackson parser without converting each of them.
+     *
+     * @param parser the JSON or Smile parser
+     * @throws IOException if the structure can not be copied
+     */
+    protected void copyJson(JsonParser parser) throws IOException {
+        JsonToken t = parser.getCurrentToken();
+        if (t == null) {
+            throw new IOException("No current event to copy");
+        }
+        if (t == JsonToken.FIELD_NAME) {
+            writeFieldName(parser.getCurrentName());
+            t = parser.nextToken();
+        }
+        // the end tokens tell if an object or an array is closed, so counting the depth is enough
+        int depth = 0;
+        while (t != null) {
+            depth += copyEvent(parser, t);
+            if (depth <= 0) {
+                return;
+            }
+            t = parser.nextToken();
+        }
+        throw new IOException("unexpected end of content");
+    }
+
+    private int copyEvent(JsonParser parser, JsonToken t) throws IOException {
+        switch (t) {
+            case START_OBJECT:
+                writeStartObject();
+                return 1;
+            case END_OBJECT:
+                writeEndObject();
+                return -1;
+            case START_ARRAY:
+                writeStartArray();
+                return 1;
+            case END_ARRAY:
+                writeEndArray();
+                return -1;
+            case FIELD_NAME:
+                writeFieldName(parser.getCurrentName());
+                break;
+            case VALUE_STRING:
+                if (parser.hasTextCharacters()) {
+                    writeString(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                } else {
+                    writeString(parser.getText());
+                }
+                break;
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                switch (parser.getNumberType()) {
+                    case INT:
+                        writeNumber(parser.getIntValue());
+                        break;
+                    case LONG:
+                        writeNumber(parser.getLongValue());
+                        break;
+                    case FLOAT:
+                        writeNumber(parser.getFloatValue());
+                        break;
+                    case DOUBLE:
+                        writeNumber(parser.getDoubleValue());
+                        break;
+                    default:
+                        // big numbers have no XContent counterpart, their text is the XML value
+                        writeString(parser.getText());
+                }
+                break;
+            case VALUE_TRUE:
+                writeBoolean(true);
+                break;
+            case VALUE_FALSE:
+                writeBoolean(false);
+                break;
+            case VALUE_NULL:
+                writeNull();
+                break;
+            case VALUE_EMBEDDED_OBJECT:
+                writeBinary(parser.getBinaryValue());
+                break;
+            default:
+                throw new IOException("can not copy " + t);
+        }
+        return 0;
+    }
+
+    private static JsonFactory jacksonFactory(XContentType xContentType) {
+        if (xContentType == XContentType.JSON) {
+            return jsonFactory;
+        }
+        if (xContentType == XContentType.SMILE) {
+            return smileFactory;
+        }
+        return null;
+    }
+
+    static JsonParser createJsonParser(BytesReference content) throws IOException {
+        return createParser(jsonFactory, content);
+    }
+
+    private static JsonParser createParser(JsonFactory factory, BytesReference content) throws IOException {
+        return content.hasArray() ?
+                factory.createParser(content.array(), content.arrayOffset(), content.length()) :
+                factory.createParser(content.streamInput());
+    }
+
+    /**
+     * Copies the current structure of an XML parser, the names are XML names already.
+     *
+     * @param parser the XML parser
+     * @throws IOException if the structure can not be copied
+     */
+    protected abstract void copyXml(JsonParser parser) throws IOException;
+
+    /**
+     * Lets the next values be written as attributes, up to the end of the current object.
+     */
+    protected abstract void setNextIsAttribute();
+
+    /**
+     * Sets the name of the next element or attribute.
+     *
+     * @param qname the name
+     * @throws IOException if the name can not be written
+     */
+    protected abstract void writeName(QName qname) throws IOException;
+
+    /**
+     * Namespaces from a @context are declared for this document only. The namespace context of the
+     * parameters is shared by all generators and is not changed.
+     */
+    protected void declareNamespace(String prefix, String uri) throws IOException {
+        if (namespaces == null) {
+            namespaces = new HashMap<>();
+        }
+        namespaces.put(prefix, uri);
+        writeNamespace(prefix, uri);
+    }
+
+    /**
+     * Writes a namespace declaration on the current element.
+     *
+     * @param prefix the namespace prefix
+     * @param uri the namespace URI
+     * @throws IOException if the namespace can not be declared
+     */
+    protected abstract void writeNamespace(String prefix, String uri) throws IOException;
+
+    /**
+     * QNames are cached in the parameters, unless the name has a prefix that may be declared in this document.
+     */
+    protected QName toQName(String name) throws IOException {
+        XmlNamespaceContext context = params.getNamespaceContext();
+        long version = context != null ? context.getVersion() : 0L;
+        boolean cacheable = namespaces == null || name.indexOf(':') < 0;
+        QName qname = cacheable ? params.getQNameCache().get(name, version) : null;
+        if (qname == null) {
+            qname = createQName(name, context);
+            if (cacheable) {
+                params.getQNameCache().put(name, version, qname);
+            }
+        }
+        return qname;
+    }
+
+    private QName createQName(String name, XmlNamespaceContext context) throws IOException {
+        QName root = params.getQName();
+        String nsPrefix = root.getPrefix();
+        String nsURI = root.getNamespaceURI();
+        if (name.startsWith("_") || name.startsWith("@")) {
+            name = name.substring(1);
+        }
+        name = ISO9075.encode(name);
+        int pos = name.indexOf(':');
+        if (pos > 0) {
+            nsPrefix = name.substring(0, pos);
+            nsURI = namespaces != null ? namespaces.get(nsPrefix) : null;
+            if (nsURI == null) {
+                nsURI = context != null ? context.getNamespaceURI(nsPrefix) : XmlXParams.DEFAULT_ROOT.getNamespaceURI();
+            }
+            if (nsURI == null) {
+                throw new IOException("unknown namespace prefix: " + nsPrefix);
+            }
+            name = name.substring(pos + 1);
+        }
+        return new QName(nsURI, name, nsPrefix);
+    }
+
+    /**
+     * Copies the current structure of a parser without recursion, so deeply nested content can not exhaust the stack.
+     *
+     * @param generator the generator
+     * @param parser the parser
+     * @throws IOException if the structure can not be copied
+     */
+    public static void copyCurrentStructure(XContentGenerator generator, XContentParser parser) throws IOException {
+        XContentParser.Token t = parser.currentToken();
+
+        // Let's handle field-name separately first
+        if (t == XContentParser.Token.FIELD_NAME) {
+            generator.writeFieldName(parser.currentName());
+            t = parser.nextToken();
+            // fall-through to copy the associated value
+        }
+
+        // the end tokens tell if an object or an array is closed, so counting the depth is enough
+        int depth = 0;
+        while (t != null) {
+            depth += copyEvent(generator, parser, t);
+            if (depth <= 0) {
+                return;
+            }
+            t = parser.nextToken();
+        }
+        throw new IOException("unexpected end of content");
+    }
+
+    public static void copyCurrentEvent(XContentGenerator generator, XContentParser parser) throws IOException {
+        copyEvent(generator, parser, parser.currentToken());
+    }
+
+    /**
+     * Copies an event.
+     *
+     * @return the change of the depth
+     */
+    private static int copyEvent(XContentGenerator generator, XContentParser parser, XContentParser.Token t)
+            throws IOException {
+        switch (t) {
+            case START_OBJECT:
+                generator.writeStartObject();
+                return 1;
+            case END_OBJECT:
+                generator.writeEndObject();
+                return -1;
+            case START_ARRAY:
+                generator.writeStartArray();
+                return 1;
+            case END_ARRAY:
+                generator.writeEndArray();
+                return -1;
+            case FIELD_NAME:
+                generator.writeFieldName(parser.currentName());
+                break;
+            case VALUE_STRING:
+                if (parser.hasTextCharacters()) {
+                    generator.writeString(parser.textCharacters(), parser.textOffset(), parser.textLength());
+                } else {
+                    generator.writeString(parser.text());
+                }
+                break;
+            case VALUE_NUMBER:
+                switch (parser.numberType()) {
+                    case INT:
+                        generator.writeNumber(parser.intValue());
+                        break;
+                    case LONG:
+                        generator.writeNumber(parser.longValue());
+                        break;
+                    case FLOAT:
+                        generator.writeNumber(parser.floatValue());
+                        break;
+                    case DOUBLE:
+                        generator.writeNumber(parser.doubleValue());
+                        break;
+                }
+                break;
+            case VALUE_BOOLEAN:
+                generator.writeBoolean(parser.booleanValue());
+                break;
+            case VALUE_NULL:
+                generator.writeNull();
+                break;
+            case VALUE_EMBEDDED_OBJECT:
+                generator.writeBinary(parser.binaryValue());
+        }
+        return 0;
+    }
+}
@@ -1,53 +1,336 @@
-
 package org.xbib.elasticsearch.common.xcontent.xml;
 
+/**
+ * Encoding and decoding of XML names according to ISO 9075, where characters that are not allowed
+ * in XML names are escaped as <code>_xHHHH_</code>.
+ *
+ * Besides the string methods, there are methods for char sequences, char arrays and UTF-8 bytes, which write
+ * into buffers of the caller. Names that need no encoding or decoding are detected in a single pass.
+ */
 public class ISO9075 {
     private static final int MASK = (1 << 4) - 1;
 
     private static final char[] DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
 
+    /**
+     * The length of an escaped character.
+     */
+    private static final int ESCAPE_LENGTH = 7;
+
     private ISO9075() {
     }
 
     public static String encode(String toEncode) {
-        if ((toEncode == null) || (toEncode.length() == 0)) {
+        if (toEncode == null || !needsEncoding(toEncode, 0, toEncode.length())) {
             return toEncode;
-        } else if (XML11Char.isXML11ValidName(toEncode) && (!toEncode.contains("_x"))) {
-            return toEncode;
-        } else {
-            StringBuilder builder = new StringBuilder(toEncode.length());
-            for (int i = 0; i < toEncode.length(); i++) {
-                char c = toEncode.charAt(i);
-                if (i == 0) {
-                    if (XML11Char.isXML11NCNameStart(c)) {
-                        if (matchesEncodedPattern(toEncode, i)) {
-                            encode('_', builder);
-                        } else {
-                            builder.append(c);
-                        }
-                    } else {
-                        encode(c, builder);
+        }
+        char[] buf = new char[maxEncodedLength(toEncode.length())];
+        return new String(buf, 0, encode(toEncode, null, 0, toEncode.length(), buf, 0, true));
+    }
+
+    public static String decode(String toDecode) {
+        if (toDecode == null || !needsDecoding(toDecode, 0, toDecode.length())) {
+            return toDecode;
+        }
+        char[] buf = new char[toDecode.length()];
+        return new String(buf, 0, decode(toDecode, null, 0, toDecode.length(), buf, 0));
+    }
+
+    /**
+     * The maximum length of an encoded name, in chars or in UTF-8 bytes.
+     *
+     * @param length the length of the name
+     * @return the maximum length of the encoded name
+     */
+    public static int maxEncodedLength(int length) {
+        return ESCAPE_LENGTH * length;
+    }
+
+    public static boolean needsEncoding(CharSequence s, int start, int end) {
+        return needsEncoding(s, null, start, end);
+    }
+
+    public static boolean needsEncoding(char[] ch, int start, int end) {
+        return needsEncoding(null, ch, start, end);
+    }
+
+    /**
+     * Encodes a name into a buffer. The buffer must have room for {@link #maxEncodedLength(int)} chars.
+     *
+     * @param s the name
+     * @param start the start of the name
+     * @param end the end of the name
+     * @param buf the buffer
+     * @param offset the offset in the buffer
+     * @return the offset in the buffer after the encoded name
+     */
+    public static int encode(CharSequence s, int start, int end, char[] buf, int offset) {
+        return encode(s, null, start, end, buf, offset, needsEncoding(s, null, start, end));
+    }
+
+    public static int encode(char[] ch, int start, int end, char[] buf, int offset) {
+        return encode(null, ch, start, end, buf, offset, needsEncoding(null, ch, start, end));
+    }
+
+    /**
+     * Encodes a name into a buffer as UTF-8. The buffer must have room for {@link #maxEncodedLength(int)} bytes.
+     *
+     * @param s the name
+     * @param start the start of the name
+     * @param end the end of the name
+     * @param buf the buffer
+     * @param offset the offset in the buffer
+     * @return the offset in the buffer after the encoded name
+     */
+    public static int encode(CharSequence s, int start, int end, byte[] buf, int offset) {
+        return encode(s, null, start, end, buf, offset, needsEncoding(s, null, start, end));
+    }
+
+    public static int encode(char[] ch, int start, int end, byte[] buf, int offset) {
+        return encode(null, ch, start, end, buf, offset, needsEncoding(null, ch, start, end));
+    }
+
+    public static boolean needsDecoding(CharSequence s, int start, int end) {
+        return needsDecoding(s, null, start, end);
+    }
+
+    public static boolean needsDecoding(char[] ch, int start, int end) {
+        return needsDecoding(null, ch, start, end);
+    }
+
+    /**
+     * Decodes a name into a buffer. The buffer must have room for the length of the name.
+     *
+     * @param s the name
+     * @param start the start of the name
+     * @param end the end of the name
+     * @param buf the buffer
+     * @param offset the offset in the buffer
+     * @return the offset in the buffer after the decoded name
+     */
+    public static int decode(CharSequence s, int start, int end, char[] buf, int offset) {
+        return decode(s, null, start, end, buf, offset);
+    }
+
+    public static int decode(char[] ch, int start, int end, char[] buf, int offset) {
+        return decode(null, ch, start, end, buf, offset);
+    }
+
+    /**
+     * Decodes a name in UTF-8 into a buffer. The buffer must have room for the length of the name in bytes.
+     *
+     * @param b the UTF-8 bytes of the name
+     * @param start the start of the name
+     * @param end the end of the name
+     * @param buf the buffer
+     * @param offset the offset in the buffer
+     * @return the offset in the buffer after the decoded name
+     * @throws IllegalArgumentException if the name is not well-formed UTF-8, or is truncated before the end
+     */
+    public static int decode(byte[] b, int start, int end, char[] buf, int offset) {
+        int pos = offset;
+        int i = start;
+        while (i < end) {
+            int c = b[i] & 0xff;
+            if (c == '_' && matchesEncodedPattern(b, i, end)) {
+                buf[pos++] = (char) ((hexValue(b[i + 2]) << 12) | (hexValue(b[i + 3]) << 8)
+                        | (hexValue(b[i + 4]) << 4) | hexValue(b[i + 5]));
+                i += ESCAPE_LENGTH;
+            } else if (c < 0x80) {
+                buf[pos++] = (char) c;
+                i++;
+            } else if (c >= 0xc2 && c < 0xe0 && isContinuation(b, i + 1, 1, end)) {
+                buf[pos++] = (char) (((c & 0x1f) << 6) | (b[i + 1] & 0x3f));
+                i += 2;
+            } else if (c >= 0xe0 && c < 0xf0 && isContinuation(b, i + 1, 2, end)) {
+                buf[pos++] = (char) (((c & 0x0f) << 12) | ((b[i + 1] & 0x3f) << 6) | (b[i + 2] & 0x3f));
+                i += 3;
+            } else if (c >= 0xf0 && c < 0xf5 && isContinuation(b, i + 1, 3, end)) {
+                int cp = ((c & 0x07) << 18) | ((b[i + 1] & 0x3f) << 12) | ((b[i + 2] & 0x3f) << 6) | (b[i + 3] & 0x3f);
+                buf[pos++] = Character.highSurrogate(cp);
+                buf[pos++] = Character.lowSurrogate(cp);
+                i += 4;
+            } else {
+                throw new IllegalArgumentException("malformed or truncated UTF-8 in name at byte " + (i - start));
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Checks that a given number of continuation bytes of the form 10xxxxxx follow before the end.
+     */
+    private static boolean isContinuation(byte[] b, int i, int n, int end) {
+        if (i + n > end) {
+            return false;
+        }
+        for (int k = i; k < i + n; k++) {
+            if ((b[k] & 0xc0) != 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the name is either in a char sequence or in a char array, so the loops exist only once
+
+    private static char charAt(CharSequence s, char[] ch, int i) {
+        return ch != null ? ch[i] : s.charAt(i);
+    }
+
+    /**
+     * A name needs encoding if it is not a valid XML 1.1 name, or if it contains "_x".
+     */
+    private static boolean needsEncoding(CharSequence s, char[] ch, int start, int end) {
+        if (start >= end) {
+            return false;
+        }
+        char c = charAt(s, ch, start);
+        if (c == '_' && start + 1 < end && charAt(s, ch, start + 1) == 'x') {
+            return true;
+        }
+        int i = start + 1;
+        if (!XML11Char.isXML11NameStart(c)) {
+            if (i < end && XML11Char.isXML11NameHighSurrogate(c)) {
+                char c2 = charAt(s, ch, i);
+                if (!XMLChar.isLowSurrogate(c2) || !XML11Char.isXML11NameStart(XMLChar.supplemental(c, c2))) {
+                    return true;
+                }
+                i++;
+            } else {
+                return true;
+            }
+        }
+        while (i < end) {
+            c = charAt(s, ch, i);
+            if (c == '_' && i + 1 < end && charAt(s, ch, i + 1) == 'x') {
+                return true;
+            }
+            if (!XML11Char.isXML11Name(c)) {
+                if (i + 1 < end && XML11Char.isXML11NameHighSurrogate(c)) {
+                    char c2 = charAt(s, ch, i + 1);
+                    if (!XMLChar.isLowSurrogate(c2) || !XML11Char.isXML11Name(XMLChar.supplemental(c, c2))) {
+                        return true;
                     }
-                } else if (!XML11Char.isXML11NCName(c)) {
-                    encode(c, builder);
+                    i++;
                 } else {
-                    if (matchesEncodedPattern(toEncode, i)) {
-                        encode('_', builder);
-                    } else {
-                        builder.append(c);
-                    }
+                    return true;
+                }
+            }
+            i++;
+        }
+        return false;
+    }
+
+    private static boolean isEscaped(CharSequence s, char[] ch, int i, int start, int end) {
+        char c = charAt(s, ch, i);
+        if (i == start ? !XML11Char.isXML11NCNameStart(c) : !XML11Char.isXML11NCName(c)) {
+            return true;
+        }
+        return c == '_' && matchesEncodedPattern(s, ch, i, end);
+    }
+
+    private static int encode(CharSequence s, char[] ch, int start, int end, char[] buf, int offset, boolean escape) {
+        int pos = offset;
+        for (int i = start; i < end; i++) {
+            char c = charAt(s, ch, i);
+            if (escape && isEscaped(s, ch, i, start, end)) {
+                buf[pos++] = '_';
+                buf[pos++] = 'x';
+                buf[pos++] = DIGITS[(c >>> 12) & MASK];
+                buf[pos++] = DIGITS[(c >>> 8) & MASK];
+                buf[pos++] = DIGITS[(c >>> 4) & MASK];
+                buf[pos++] = DIGITS[c & MASK];
+                buf[pos++] = '_';
+            } else {
+                buf[pos++] = c;
+            }
+        }
+        return pos;
+    }
+
+    private static int encode(CharSequence s, char[] ch, int start, int end, byte[] buf, int offset, boolean escape) {
+        int pos = offset;
+        for (int i = start; i < end; i++) {
+            char c = charAt(s, ch, i);
+            if (escape && isEscaped(s, ch, i, start, end)) {
+                buf[pos++] = '_';
+                buf[pos++] = 'x';
+                buf[pos++] = (byte) DIGITS[(c >>> 12) & MASK];
+                buf[pos++] = (byte) DIGITS[(c >>> 8) & MASK];
+                buf[pos++] = (byte) DIGITS[(c >>> 4) & MASK];
+                buf[pos++] = (byte) DIGITS[c & MASK];
+                buf[pos++] = '_';
+            } else if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(charAt(s, ch, i + 1))
+                        && !(escape && isEscaped(s, ch, i + 1, start, end))) {
+                    int cp = Character.toCodePoint(c, charAt(s, ch, ++i));
+                    buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+                } else {
+                    // unpaired surrogates can not be encoded in UTF-8
+                    buf[pos++] = '?';
                 }
+            } else {
+                buf[pos++] = (byte) (0xe0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return pos;
+    }
+
+    private static boolean needsDecoding(CharSequence s, char[] ch, int start, int end) {
+        for (int i = start; i < end - ESCAPE_LENGTH + 1; i++) {
+            if (charAt(s, ch, i) == '_' && matchesEncodedPattern(s, ch, i, end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int decode(CharSequence s, char[] ch, int start, int end, char[] buf, int offset) {
+        int pos = offset;
+        int i = start;
+        while (i < end) {
+            char c = charAt(s, ch, i);
+            if (c == '_' && matchesEncodedPattern(s, ch, i, end)) {
+                buf[pos++] = (char) ((hexValue(charAt(s, ch, i + 2)) << 12) | (hexValue(charAt(s, ch, i + 3)) << 8)
+                        | (hexValue(charAt(s, ch, i + 4)) << 4) | hexValue(charAt(s, ch, i + 5)));
+                i += ESCAPE_LENGTH;
+            } else {
+                buf[pos++] = c;
+                i++;
             }
-            return builder.toString();
         }
+        return pos;
+    }
+
+    private static boolean matchesEncodedPattern(CharSequence s, char[] ch, int position, int end) {
+        return (end - position >= ESCAPE_LENGTH)
+                && (charAt(s, ch, position) == '_') && (charAt(s, ch, position + 1) == 'x')
+                && isHexChar(charAt(s, ch, position + 2)) && isHexChar(charAt(s, ch, position + 3))
+                && isHexChar(charAt(s, ch, position + 4)) && isHexChar(charAt(s, ch, position + 5))
+                && (charAt(s, ch, position + 6) == '_');
+    }
+
+    private static boolean matchesEncodedPattern(byte[] b, int position, int end) {
+        return (end - position >= ESCAPE_LENGTH)
+                && (b[position] == '_') && (b[position + 1] == 'x')
+                && isHexChar((char) b[position + 2]) && isHexChar((char) b[position + 3])
+                && isHexChar((char) b[position + 4]) && isHexChar((char) b[position + 5])
+                && (b[position + 6] == '_');
     }
 
-    private static boolean matchesEncodedPattern(String string, int position) {
-        return (string.length() >= position + 6)
-                && (string.charAt(position) == '_') && (string.charAt(position + 1) == 'x')
-                && isHexChar(string.charAt(position + 2)) && isHexChar(string.charAt(position + 3))
-                && isHexChar(string.charAt(position + 4)) && isHexChar(string.charAt(position + 5))
-                && (string.charAt(position + 6) == '_');
+    private static int hexValue(int c) {
+        return c <= '9' ? c - '0' : (c | 0x20) - 'a' + 10;
     }
 
     private static boolean isHexChar(char c) {
@@ -79,31 +362,4 @@ public class ISO9075 {
                 return false;
         }
     }
-
-    public static String decode(String toDecode) {
-        if ((toDecode == null) || (toDecode.length() < 7) || (!toDecode.contains("_x"))) {
-            return toDecode;
-        }
-        StringBuilder decoded = new StringBuilder();
-        for (int i = 0, l = toDecode.length(); i < l; i++) {
-            if (matchesEncodedPattern(toDecode, i)) {
-                decoded.append(((char) Integer.parseInt(toDecode.substring(i + 2, i + 6), 16)));
-                i += 6;
-            } else {
-                decoded.append(toDecode.charAt(i));
-            }
-        }
-        return decoded.toString();
-    }
-
-    private static void encode(char c, StringBuilder builder) {
-        char[] buf = new char[]{'_', 'x', '0', '0', '0', '0', '_'};
-        int charPos = 6;
-        do {
-            buf[--charPos] = DIGITS[c & MASK];
-            c >>>= 4;
-        }
-        while (c != 0);
-        builder.append(buf);
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,144 @@
+package org.xbib.elasticsearch.common.xcontent.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An input stream over a file that is mapped into memory window by window.
+ *
+ * The bytes are read from the page cache, not copied into a heap buffer of the size of the file,
+ * so files larger than the heap, or larger than 2 GB, can be read. Only one window is mapped at a time.
+ * A window is unmapped by the garbage collector after it has been left.
+ */
+public class MappedInputStream extends InputStream {
+
+    /**
+     * The default size of a window, 64 MB.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel channel;
+
+    private final long size;
+
+    private final int windowSize;
+
+    private long position;
+
+    private MappedByteBuffer window;
+
+    private long mark;
+
+    public MappedInputStream(FileChannel channel) throws IOException {
+        this(channel, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedInputStream(FileChannel channel, int windowSize) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        this.windowSize = windowSize;
+        this.position = channel.position();
+    }
+
+    /**
+     * Opens a file for reading.
+     *
+     * @param path the path of the file
+     * @return the input stream
+     * @throws IOException if the file can not be opened
+     */
+    public static MappedInputStream open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new MappedInputStream(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureWindow()) {
+            return -1;
+        }
+        position++;
+        return window.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureWindow()) {
+            return -1;
+        }
+        int n = Math.min(len, window.remaining());
+        window.get(b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, size - position));
+        seek(position + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, size - position);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        seek(mark);
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    private void seek(long newPosition) {
+        if (window != null) {
+            long windowStart = position - window.position();
+            if (newPosition >= windowStart && newPosition < windowStart + window.limit()) {
+                window.position((int) (newPosition - windowStart));
+            } else {
+                window = null;
+            }
+        }
+        position = newPosition;
+    }
+
+    private boolean ensureWindow() throws IOException {
+        if (window != null && window.hasRemaining()) {
+            return true;
+        }
+        if (position >= size) {
+            return false;
+        }
+        // leave the old window to the garbage collector before mapping the next one
+        window = null;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(windowSize, size - position));
+        return true;
+    }
+}
@@ -0,0 +1,598 @@
+package org.xbib.elasticsearch.common.xcontent.xml;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.filter.TokenFilter;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentString;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.support.filtering.FilterPathBasedFilter;
+
+import javax.xml.namespace.QName;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * An XML content generator that writes only the fields matching filter paths, like {@code filter_path}
+ * does for JSON responses. Paths are separated by dots and may have {@code *} and {@code **} wildcards.
+ * The paths are matched by the filter of the JSON responses, so both select the same fields.
+ *
+ * The fields that are written are handed to another XML content generator. The start of an object or an array
+ * is written with its first matching field, so objects without matching fields are left out, except the root.
+ * Fields that can not match are skipped as a whole, the values of raw fields and copied structures
+ * are not even parsed.
+ */
+public class XmlFilteringXContentGenerator extends AbstractXmlXContentGenerator {
+
+    private final AbstractXmlXContentGenerator generator;
+
+    private final TokenFilter rootFilter;
+
+    // for each open object or array, the filter of its values, INCLUDE_ALL if all values match
+    private TokenFilter[] filters = new TokenFilter[16];
+
+    private boolean[] arrays = new boolean[16];
+
+    private String[] names = new String[16];
+
+    private int level = -1;
+
+    // the open objects and arrays up to this level have been written
+    private int writtenLevel = -1;
+
+    // the open objects and arrays in a value that does not match
+    private int skipped;
+
+    // the field name of the next value, if not yet written, and the filter of the next value, null if it does not match
+    private String nextName;
+
+    private TokenFilter next;
+
+    public XmlFilteringXContentGenerator(AbstractXmlXContentGenerator generator, String... filters) {
+        this.generator = generator;
+        this.rootFilter = new FilterPathBasedFilter(filters);
+    }
+
+    @Override
+    public AbstractXmlXContentGenerator setParams(XmlXParams params) {
+        super.setParams(params);
+        generator.setParams(params);
+        return this;
+    }
+
+    @Override
+    public AbstractXmlXContentGenerator setContentType(XContentType contentType) {
+        generator.setContentType(contentType);
+        return this;
+    }
+
+    @Override
+    public AbstractXmlXContentGenerator setFragment(String name, Map<String, String> rootNamespaces) {
+        generator.setFragment(name, rootNamespaces);
+        return this;
+    }
+
+    @Override
+    public AbstractXmlXContentGenerator setFragmentStream(XmlFragmentStream fragmentStream) {
+        generator.setFragmentStream(fragmentStream);
+        return this;
+    }
+
+    @Override
+    public Map<String, String> getRootNamespaces() {
+        return generator.getRootNamespaces();
+    }
+
+    @Override
+    public XmlXContent xContent() {
+        return generator.xContent();
+    }
+
+    @Override
+    public XContentType contentType() {
+        return generator.contentType();
+    }
+
+    @Override
+    public void usePrettyPrint() {
+        generator.usePrettyPrint();
+    }
+
+    @Override
+    public void usePrintLineFeedAtEnd() {
+        generator.usePrintLineFeedAtEnd();
+    }
+
+    @Override
+    public void writeStartArray() throws IOException {
+        start(true);
+    }
+
+    @Override
+    public void writeEndArray() throws IOException {
+        end(true);
+    }
+
+    @Override
+    public void writeStartObject() throws IOException {
+        start(false);
+    }
+
+    @Override
+    public void writeEndObject() throws IOException {
+        end(false);
+    }
+
+    @Override
+    public void writeFieldName(String name) throws IOException {
+        if (skipped > 0) {
+            return;
+        }
+        if (filters[level] == TokenFilter.INCLUDE_ALL) {
+            generator.writeFieldName(name);
+            nextName = null;
+            next = TokenFilter.INCLUDE_ALL;
+        } else {
+            nextName = name;
+            next = filters[level].includeProperty(name);
+        }
+    }
+
+    @Override
+    public void writeFieldName(XContentString name) throws IOException {
+        writeFieldName(name.getValue());
+    }
+
+    @Override
+    public void writeString(String text) throws IOException {
+        if (includeValue()) {
+            generator.writeString(text);
+        }
+    }
+
+    @Override
+    public void writeString(char[] text, int offset, int len) throws IOException {
+        if (includeValue()) {
+            generator.writeString(text, offset, len);
+        }
+    }
+
+    @Override
+    public void writeUTF8String(byte[] text, int offset, int length) throws IOException {
+        if (includeValue()) {
+            generator.writeUTF8String(text, offset, length);
+        }
+    }
+
+    @Override
+    public void writeBinary(byte[] data, int offset, int len) throws IOException {
+        if (includeValue()) {
+            generator.writeBinary(data, offset, len);
+        }
+    }
+
+    @Override
+    public void writeBinary(byte[] data) throws IOException {
+        if (includeValue()) {
+            generator.writeBinary(data);
+        }
+    }
+
+    @Override
+    public void writeNumber(int v) throws IOException {
+        if (includeValue()) {
+            generator.writeNumber(v);
+        }
+    }
+
+    @Override
+    public void writeNumber(long v) throws IOException {
+        if (includeValue()) {
+            generator.writeNumber(v);
+        }
+    }
+
+    @Override
+    public void writeNumber(double d) throws IOException {
+        if (includeValue()) {
+            generator.writeNumber(d);
+        }
+    }
+
+    @Override
+    public void writeNumber(float f) throws IOException {
+        if (includeValue()) {
+            generator.writeNumber(f);
+        }
+    }
+
+    @Override
+    public void writeBoolean(boolean state) throws IOException {
+        if (includeValue()) {
+            generator.writeBoolean(state);
+        }
+    }
+
+    @Override
+    public void writeNull() throws IOException {
+        if (includeValue()) {
+            generator.writeNull();
+        }
+    }
+
+    @Override
+    public void writeStringField(String fieldName, String value) throws IOException {
+        writeFieldName(fieldName);
+        writeString(value);
+    }
+
+    @Override
+    public void writeStringField(XContentString fieldName, String value) throws IOException {
+        writeFieldName(fieldName);
+        writeString(value);
+    }
+
+    @Override
+    public void writeBooleanField(String fieldName, boolean value) throws IOException {
+        writeFieldName(fieldName);
+        writeBoolean(value);
+    }
+
+    @Override
+    public void writeBooleanField(XContentString fieldName, boolean value) throws IOException {
+        writeFieldName(fieldName);
+        writeBoolean(value);
+    }
+
+    @Override
+    public void writeNullField(String fieldName) throws IOException {
+        writeFieldName(fieldName);
+        writeNull();
+    }
+
+    @Override
+    public void writeNullField(XContentString fieldName) throws IOException {
+        writeFieldName(fieldName);
+        writeNull();
+    }
+
+    @Override
+    public void writeNumberField(String fieldName, int value) throws IOException {
+        writeFieldName(fieldName);
+        writeNumber(value);
+    }
+
+    @Override
+    public void writeNumberField(XContentString fieldName, int value) throws IOException {
+        writeFieldName(fieldName);
+        writeNumber(value);
+    }
+
+    @Override
+    public void writeNumberField(String fieldName, long value) throws IOException {
+        writeFieldName(fieldName);
+        writeNumber(value);
+    }
+
+    @Override
+    public void writeNumberField(XContentString fieldName, long value) throws IOException {
+        writeFieldName(fieldName);
+        writeNumber(value);
+    }
+
+    @Override
+    public void writeNumberField(String fieldName, double value) throws IOException {
+        writeFieldName(fieldName);
+        writeNumber(value);
+    }
+
+    @Override
+    public void writeNumberField(XContentString fieldName, double value) throws IOException {
+        writeFieldName(fieldName);
+        writeNumber(value);
+    }
+
+    @Override
+    public void writeNumberField(String fieldName, float value) throws IOException {
+        writeFieldName(fieldName);
+        writeNumber(value);
+    }
+
+    @Override
+    public void writeNumberField(XContentString fieldName, float value) throws IOException {
+        writeFieldName(fieldName);
+        writeNumber(value);
+    }
+
+    @Override
+    public void writeBinaryField(String fieldName, byte[] data) throws IOException {
+        writeFieldName(fieldName);
+        writeBinary(data);
+    }
+
+    @Override
+    public void writeBinaryField(XContentString fieldName, byte[] data) throws IOException {
+        writeFieldName(fieldName);
+        writeBinary(data);
+    }
+
+    @Override
+    public void writeArrayFieldStart(String fieldName) throws IOException {
+        writeFieldName(fieldName);
+        writeStartArray();
+    }
+
+    @Override
+    public void writeArrayFieldStart(XContentString fieldName) throws IOException {
+        writeFieldName(fieldName);
+        writeStartArray();
+    }
+
+    @Override
+    public void writeObjectFieldStart(String fieldName) throws IOException {
+        writeFieldName(fieldName);
+        writeStartObject();
+    }
+
+    @Override
+    public void writeObjectFieldStart(XContentString fieldName) throws IOException {
+        writeFieldName(fieldName);
+        writeStartObject();
+    }
+
+    @Override
+    public void writeRawField(String fieldName, InputStream content) throws IOException {
+        if (skipped > 0) {
+            return;
+        }
+        TokenFilter f = filters[level].includeProperty(fieldName);
+        if (f == TokenFilter.INCLUDE_ALL) {
+            nextName = null;
+            writePath();
+            generator.writeRawField(fieldName, content);
+        } else if (f != null) {
+            if (!content.markSupported()) {
+                content = new BufferedInputStream(content);
+            }
+            content.mark(GUESS_HEADER_LENGTH);
+            XContentType xContentType = XContentFactory.xContentType(content);
+            content.reset();
+            if (xContentType != null) {
+                nextName = fieldName;
+                next = f;
+                try (XContentParser parser = XContentFactory.xContent(xContentType).createParser(content)) {
+                    parser.nextToken();
+                    copy(parser);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void writeRawField(String fieldName, BytesReference content) throws IOException {
+        if (skipped > 0) {
+            return;
+        }
+        TokenFilter f = filters[level].includeProperty(fieldName);
+        if (f == TokenFilter.INCLUDE_ALL) {
+            nextName = null;
+            writePath();
+            generator.writeRawField(fieldName, content);
+        } else if (f != null) {
+            XContentType xContentType = XContentFactory.xContentType(content);
+            if (xContentType != null) {
+                nextName = fieldName;
+                next = f;
+                try (XContentParser parser = XContentFactory.xContent(xContentType).createParser(content)) {
+                    parser.nextToken();
+                    copy(parser);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void writeRawValue(BytesReference content) throws IOException {
+        if (skipped > 0) {
+            return;
+        }
+        TokenFilter f = valueFilter();
+        if (f == TokenFilter.INCLUDE_ALL) {
+            writePath();
+            generator.writeRawValue(content);
+        } else if (f != null) {
+            XContentType xContentType = XContentFactory.xContentType(content);
+            if (xContentType != null) {
+                try (XContentParser parser = XContentFactory.xContent(xContentType).createParser(content)) {
+                    parser.nextToken();
+                    copy(parser);
+                }
+            }
+        }
+        nextName = null;
+    }
+
+    @Override
+    protected void copyXml(JsonParser parser) throws IOException {
+        if (includeValue()) {
+            generator.copyXml(parser);
+        }
+    }
+
+    @Override
+    public void writeFragment(BytesReference fragment) throws IOException {
+        if (includeValue()) {
+            generator.writeFragment(fragment);
+        }
+    }
+
+    @Override
+    public void copyCurrentStructure(XContentParser parser) throws IOException {
+        if (parser.currentToken() == null) {
+            parser.nextToken();
+        }
+        copy(parser);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        generator.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        generator.close();
+    }
+
+    @Override
+    protected void setNextIsAttribute() {
+        generator.setNextIsAttribute();
+    }
+
+    @Override
+    protected void writeName(QName qname) throws IOException {
+        generator.writeName(qname);
+    }
+
+    @Override
+    protected void writeNamespace(String prefix, String uri) throws IOException {
+        generator.writeNamespace(prefix, uri);
+    }
+
+    /**
+     * Copies the current structure of the parser, skipping the values that do not match without generating events.
+     * The objects and arrays are entered without recursion, their depth is counted.
+     */
+    private void copy(XContentParser parser) throws IOException {
+        XContentParser.Token t = parser.currentToken();
+        int depth = 0;
+        do {
+            if (t == XContentParser.Token.END_OBJECT || t == XContentParser.Token.END_ARRAY) {
+                end(t == XContentParser.Token.END_ARRAY);
+                depth--;
+                continue;
+            }
+            if (t == XContentParser.Token.FIELD_NAME) {
+                writeFieldName(parser.currentName());
+                t = parser.nextToken();
+            }
+            TokenFilter f = skipped > 0 ? null : valueFilter();
+            if (f == TokenFilter.INCLUDE_ALL) {
+                writePath();
+                generator.copyCurrentStructure(parser);
+            } else if (f == null) {
+                nextName = null;
+                parser.skipChildren();
+            } else if (t == XContentParser.Token.START_OBJECT) {
+                start(false);
+                depth++;
+            } else if (t == XContentParser.Token.START_ARRAY) {
+                start(true);
+                depth++;
+            } else if (includeValue()) {
+                AbstractXmlXContentGenerator.copyCurrentEvent(generator, parser);
+            }
+        } while (depth > 0 && (t = parser.nextToken()) != null);
+    }
+
+    private void start(boolean array) throws IOException {
+        if (skipped > 0) {
+            skipped++;
+            return;
+        }
+        if (level < 0) {
+            // the root is always written
+            push(array, rootFilter, null);
+            writePath();
+            return;
+        }
+        TokenFilter f = valueFilter();
+        String name = nextName;
+        nextName = null;
+        if (f == null) {
+            skipped = 1;
+            return;
+        }
+        push(array, f, name);
+        if (f == TokenFilter.INCLUDE_ALL) {
+            writePath();
+        }
+    }
+
+    private void end(boolean array) throws IOException {
+        if (skipped > 0) {
+            skipped--;
+            return;
+        }
+        if (writtenLevel == level) {
+            if (array) {
+                generator.writeEndArray();
+            } else {
+                generator.writeEndObject();
+            }
+            writtenLevel--;
+        }
+        level--;
+    }
+
+    private void push(boolean array, TokenFilter f, String name) {
+        level++;
+        if (level == filters.length) {
+            filters = Arrays.copyOf(filters, 2 * level);
+            arrays = Arrays.copyOf(arrays, 2 * level);
+            names = Arrays.copyOf(names, 2 * level);
+        }
+        filters[level] = f;
+        arrays[level] = array;
+        names[level] = name;
+    }
+
+    /**
+     * The filter of the next value. Elements of arrays have the filter of the array.
+     */
+    private TokenFilter valueFilter() {
+        if (level < 0) {
+            return rootFilter;
+        }
+        return arrays[level] || filters[level] == TokenFilter.INCLUDE_ALL ? filters[level] : next;
+    }
+
+    /**
+     * Checks if the next scalar value matches, and writes the objects and arrays it is in if it does.
+     * A filter that does not include all values includes a scalar value only if one of its paths ends here.
+     */
+    private boolean includeValue() throws IOException {
+        TokenFilter f = skipped > 0 ? null : valueFilter();
+        if (f == null || (f != TokenFilter.INCLUDE_ALL && !f.includeNull())) {
+            nextName = null;
+            return false;
+        }
+        writePath();
+        return true;
+    }
+
+    /**
+     * Writes the open objects and arrays that have not been written yet, and the pending field name.
+     */
+    private void writePath() throws IOException {
+        while (writtenLevel < level) {
+            writtenLevel++;
+            if (names[writtenLevel] != null) {
+                generator.writeFieldName(names[writtenLevel]);
+            }
+            if (arrays[writtenLevel]) {
+                generator.writeStartArray();
+            } else {
+                generator.writeStartObject();
+            }
+        }
+        if (nextName != null) {
+            generator.writeFieldName(nextName);
+            nextName = null;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.xbib.elasticsearch.common.xcontent.xml;
+
+import com.fasterxml.jackson.core.JsonParser;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Converts a JSON object to an XML fragment of an enclosing document, for example in another thread.
+ *
+ * The parser is handed over at the start of the object and is closed after the conversion.
+ */
+class XmlFragment implements Callable<BytesReference> {
+
+    private final XmlXContent xContent;
+
+    private final XmlXParams params;
+
+    private final String name;
+
+    private final Map<String, String> rootNamespaces;
+
+    private final JsonParser parser;
+
+    private final int expectedSize;
+
+    /**
+     * @param expectedSize the length of the JSON object, fragments are small, so the output is sized by it
+     */
+    XmlFragment(XmlXContent xContent, XmlXParams params, String name, Map<String, String> rootNamespaces,
+                JsonParser parser, int expectedSize) {
+        this.xContent = xContent;
+        this.params = params;
+        this.name = name;
+        this.rootNamespaces = rootNamespaces;
+        this.parser = parser;
+        this.expectedSize = expectedSize;
+    }
+
+    @Override
+    public BytesReference call() throws Exception {
+        BytesStreamOutput out = new BytesStreamOutput(expectedSize);
+        AbstractXmlXContentGenerator generator = (AbstractXmlXContentGenerator) xContent.createGenerator(out);
+        generator.setParams(params).setFragment(name, rootNamespaces);
+        try {
+            generator.copyJson(parser);
+        } finally {
+            parser.close();
+        }
+        generator.close();
+        return out.bytes();
+    }
+}
@@ -0,0 +1,192 @@
+package org.xbib.elasticsearch.common.xcontent.xml;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.BytesStream;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An output for XML generators that converts raw fields, like the _source of search hits, in parallel.
+ *
+ * A generator hands raw fields over as fragments with {@link #submit(Callable)}. The output written after
+ * a pending fragment is buffered, and everything is written in the original order as soon as the fragments
+ * are done. Not more than a window of fragments is in flight, so memory stays bounded. Raw fields are
+ * converted by the generator itself until the raw content seen exceeds the threshold, so small responses
+ * do not pay for the hand over.
+ */
+public class XmlFragmentStream extends OutputStream implements BytesStream {
+
+    private final BytesStreamOutput out;
+
+    private final ExecutorService executor;
+
+    private final int window;
+
+    private final long threshold;
+
+    // fragment futures and the buffers of the output written between them, in output order
+    private final Deque<Object> pending;
+
+    private BytesStreamOutput segment;
+
+    private int inFlight;
+
+    private long rawLength;
+
+    // a failed fragment fails the output, also when the stream is closed before the bytes are taken
+    private IOException failure;
+
+    public XmlFragmentStream(BytesStreamOutput out, ExecutorService executor, int window, long threshold) {
+        this.out = out;
+        this.executor = executor;
+        this.window = window;
+        this.threshold = threshold;
+        this.pending = new ArrayDeque<>();
+    }
+
+    /**
+     * Counts the length of a raw field, and tells if it should be handed over as a fragment.
+     *
+     * @param length the length of the raw field
+     * @return true if the raw field should be converted in parallel
+     */
+    boolean isParallel(int length) {
+        rawLength += length;
+        return rawLength > threshold;
+    }
+
+    /**
+     * Adds a fragment after the output written so far. If the executor rejects it, it is converted
+     * in the calling thread.
+     *
+     * @param fragment the conversion of the fragment
+     * @throws IOException if a fragment can not be converted or written
+     */
+    void submit(Callable<BytesReference> fragment) throws IOException {
+        Future<BytesReference> future;
+        try {
+            future = executor.submit(fragment);
+        } catch (EsRejectedExecutionException | RejectedExecutionException e) {
+            FutureTask<BytesReference> task = new FutureTask<>(fragment);
+            task.run();
+            future = task;
+        }
+        segment = null;
+        pending.add(future);
+        inFlight++;
+        drain(inFlight > window);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        output().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        output().write(b, off, len);
+    }
+
+    /**
+     * Pending fragments are not waited for, generators flush before each fragment.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (pending.isEmpty()) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        drainAll();
+    }
+
+    @Override
+    public BytesReference bytes() {
+        try {
+            drainAll();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.bytes();
+    }
+
+    private OutputStream output() {
+        if (pending.isEmpty()) {
+            return out;
+        }
+        if (segment == null) {
+            segment = new BytesStreamOutput();
+            pending.add(segment);
+        }
+        return segment;
+    }
+
+    private void drainAll() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        try {
+            while (!pending.isEmpty()) {
+                drain(true);
+            }
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } finally {
+            for (Object o : pending) {
+                if (o instanceof Future) {
+                    ((Future<?>) o).cancel(true);
+                }
+            }
+            pending.clear();
+            segment = null;
+        }
+    }
+
+    /**
+     * Writes the fragments that are done, and the output between them.
+     *
+     * @param wait if the oldest pending fragment is waited for
+     */
+    @SuppressWarnings("unchecked")
+    private void drain(boolean wait) throws IOException {
+        while (!pending.isEmpty()) {
+            Object head = pending.peek();
+            if (head instanceof Future) {
+                Future<BytesReference> future = (Future<BytesReference>) head;
+                if (!wait && !future.isDone()) {
+                    return;
+                }
+                try {
+                    future.get().writeTo(out);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+                wait = false;
+                inFlight--;
+            } else {
+                ((BytesStreamOutput) head).bytes().writeTo(out);
+                if (head == segment) {
+                    segment = null;
+                }
+            }
+            pending.poll();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.xbib.elasticsearch.common.xcontent.xml;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+
+import java.io.IOException;
+
+/**
+ * Copies JSON search responses to XML, where the elements of the hits array are converted in parallel.
+ *
+ * The hits are only skipped over by the parser. Each hit is handed over as a slice of the response bytes
+ * to the fragment stream of the generator, which converts it in another thread and writes the XML
+ * fragments in the original order.
+ */
+public class XmlHitsTranscoder {
+
+    private static final String[] PATH = new String[] { "hits", "hits" };
+
+    private final XmlFragmentStream fragmentStream;
+
+    /**
+     * @param fragmentStream the output of the generators this transcoder copies to
+     */
+    public XmlHitsTranscoder(XmlFragmentStream fragmentStream) {
+        this.fragmentStream = fragmentStream;
+    }
+
+    /**
+     * Copies a JSON response.
+     *
+     * @param generator a generator writing to the fragment stream of this transcoder
+     * @param content the JSON response
+     * @throws IOException if the response can not be copied
+     */
+    public void copy(AbstractXmlXContentGenerator generator, BytesReference content) throws IOException {
+        try (JsonParser parser = AbstractXmlXContentGenerator.createJsonParser(content)) {
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                copyObject(generator, parser, content, 0);
+            } else {
+                generator.copyJson(parser);
+            }
+        }
+        generator.flush();
+    }
+
+    private void copyObject(AbstractXmlXContentGenerator generator, JsonParser parser, BytesReference content,
+                            int level) throws IOException {
+        generator.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            generator.writeFieldName(name);
+            if (PATH[level].equals(name)) {
+                if (level < PATH.length - 1 && token == JsonToken.START_OBJECT) {
+                    copyObject(generator, parser, content, level + 1);
+                    continue;
+                }
+                if (level == PATH.length - 1 && token == JsonToken.START_ARRAY) {
+                    copyArray(generator, parser, content, name);
+                    continue;
+                }
+            }
+            generator.copyJson(parser);
+        }
+        generator.writeEndObject();
+    }
+
+    private void copyArray(AbstractXmlXContentGenerator generator, JsonParser parser, BytesReference content,
+                           String name) throws IOException {
+        XmlXContent xContent = generator.xContent();
+        generator.writeStartArray();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+                // the token location of an array element may point to the comma before it
+                int start = (int) parser.getTokenLocation().getByteOffset();
+                while (content.get(start) != '{') {
+                    start++;
+                }
+                parser.skipChildren();
+                int end = (int) parser.getCurrentLocation().getByteOffset();
+                JsonParser hitParser = AbstractXmlXContentGenerator.createJsonParser(content.slice(start, end - start));
+                hitParser.nextToken();
+                // closes a pending start element and moves the output written so far to the stream
+                generator.writeFragment(BytesArray.EMPTY);
+                fragmentStream.submit(new XmlFragment(xContent, generator.getParams(), name,
+                        generator.getRootNamespaces(), hitParser, end - start));
+            } else {
+                generator.copyJson(parser);
+            }
+        }
+        generator.writeEndArray();
+    }
+}
@@ -0,0 +1,50 @@
+package org.xbib.elasticsearch.common.xcontent.xml;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A bounded table of decoded XML names, shared by the parsers of a factory.
+ *
+ * Element and attribute names are decoded from ISO 9075, so each distinct name is decoded once,
+ * and all parsers return the same string instance for it. If the table is full, new names
+ * are decoded each time.
+ */
+public class XmlNameTable {
+
+    public static final int DEFAULT_SIZE = 4096;
+
+    private final int size;
+
+    private final ConcurrentMap<String, String> names;
+
+    public XmlNameTable() {
+        this(DEFAULT_SIZE);
+    }
+
+    public XmlNameTable(int size) {
+        this.size = size;
+        this.names = new ConcurrentHashMap<>();
+    }
+
+    public String decode(String name) {
+        if (name == null) {
+            return null;
+        }
+        String decoded = names.get(name);
+        if (decoded == null) {
+            decoded = ISO9075.decode(name);
+            if (names.size() < size) {
+                String previous = names.putIfAbsent(name, decoded);
+                if (previous != null) {
+                    decoded = previous;
+                }
+            }
+        }
+        return decoded;
+    }
+
+    public int size() {
+        return names.size();
+    }
+}
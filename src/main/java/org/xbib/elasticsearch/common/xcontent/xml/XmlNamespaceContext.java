@@ -1,6 +1,7 @@
 package org.xbib.elasticsearch.common.xcontent.xml;
 
 import javax.xml.namespace.NamespaceContext;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -14,14 +15,18 @@ import java.util.TreeMap;
 /**
  * Contains a simple context for XML namespaces
  *
+ * The namespaces are copied on write, so lookups do not need locks. Namespaces are meant to be added
+ * while setting up the context, not while generating XML.
  */
 public class XmlNamespaceContext implements NamespaceContext {
 
     private static final String DEFAULT_RESOURCE = "xml-namespaces";
 
-    private final SortedMap<String, String> namespaces = new TreeMap<>();
+    private volatile SortedMap<String, String> namespaces = new TreeMap<>();
 
-    private final SortedMap<String, Set<String>> prefixes = new TreeMap<>();
+    private volatile SortedMap<String, Set<String>> prefixes = new TreeMap<>();
+
+    private volatile long version;
 
     protected XmlNamespaceContext() {
     }
@@ -69,14 +74,25 @@ public class XmlNamespaceContext implements NamespaceContext {
     }
 
     public final synchronized void addNamespace(String prefix, String namespace) {
-        namespaces.put(prefix, namespace);
-        if (prefixes.containsKey(namespace)) {
-            prefixes.get(namespace).add(prefix);
-        } else {
-            Set<String> set = new HashSet<String>();
-            set.add(prefix);
-            prefixes.put(namespace, set);
-        }
+        SortedMap<String, String> newNamespaces = new TreeMap<>(namespaces);
+        newNamespaces.put(prefix, namespace);
+        SortedMap<String, Set<String>> newPrefixes = new TreeMap<>(prefixes);
+        Set<String> set = prefixes.containsKey(namespace) ?
+                new HashSet<>(prefixes.get(namespace)) : new HashSet<String>();
+        set.add(prefix);
+        newPrefixes.put(namespace, Collections.unmodifiableSet(set));
+        this.prefixes = Collections.unmodifiableSortedMap(newPrefixes);
+        this.namespaces = Collections.unmodifiableSortedMap(newNamespaces);
+        this.version++;
+    }
+
+    /**
+     * The version of this context, it changes with each added namespace.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
     }
 
     public Map<String, String> getNamespaces() {
@@ -88,7 +104,7 @@ public class XmlNamespaceContext implements NamespaceContext {
         if (prefix == null) {
             return null;
         }
-        return namespaces.containsKey(prefix) ? namespaces.get(prefix) : null;
+        return namespaces.get(prefix);
     }
 
     @Override
@@ -102,8 +118,8 @@ public class XmlNamespaceContext implements NamespaceContext {
         if (namespace == null) {
             throw new IllegalArgumentException("namespace URI cannot be null");
         }
-        return prefixes.containsKey(namespace) ?
-                prefixes.get(namespace).iterator() : null;
+        Set<String> set = prefixes.get(namespace);
+        return set != null ? set.iterator() : null;
     }
 
     public String toString() {
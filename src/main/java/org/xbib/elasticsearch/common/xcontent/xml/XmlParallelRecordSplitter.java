@@ -0,0 +1,573 @@
+package org.xbib.elasticsearch.common.xcontent.xml;
+
+import com.google.common.base.Charsets;
+import org.apache.lucene.util.ArrayUtil;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits an XML stream into records and converts the records in parallel.
+ *
+ * The record boundaries are found by scanning the bytes for tags, without decoding characters
+ * and without an XML parser. Each record is copied into a standalone document and converted by a task
+ * of an executor, usually a fork-join pool, while the scan goes on. The results are handed to the listener
+ * in the calling thread, in the order of the records, or in the order they are done.
+ *
+ * Like {@link XmlRecordSplitter}, a record is an element with a given local name, at any depth, records
+ * nested into records are not split, and namespaces declared outside of a record are repeated in the record.
+ * The scan works for encodings where the markup is ASCII, like UTF-8 or ISO-8859-1. Other encodings,
+ * like UTF-16, are split by a {@link XmlRecordSplitter} and converted in the calling thread.
+ *
+ * The scan does not check that the XML is well-formed, this is left to the conversion of the records.
+ *
+ * @param <T> the type of the converted records
+ */
+public class XmlParallelRecordSplitter<T> {
+
+    private static final Pattern ENCODING = Pattern.compile("^<\\?xml[^>]*encoding\\s*=\\s*[\"']([A-Za-z0-9._-]+)[\"']");
+
+    private static final byte[] COMMENT_END = "-->".getBytes(Charsets.US_ASCII);
+
+    private static final byte[] CDATA_END = "]]>".getBytes(Charsets.US_ASCII);
+
+    private static final byte[] PI_END = "?>".getBytes(Charsets.US_ASCII);
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final String recordName;
+
+    private final ExecutorService executor;
+
+    private final int maxPending;
+
+    private final boolean ordered;
+
+    private byte[] recordNameBytes;
+
+    private byte[] declaration;
+
+    private InputStream in;
+
+    private byte[] buf;
+
+    private int limit;
+
+    private int pos;
+
+    private int tagStart;
+
+    private int recordStart = -1;
+
+    private int recordNameEnd;
+
+    private int nesting;
+
+    // the namespace declarations of the open elements outside of records, innermost last
+    private final List<List<Namespace>> namespaces = new ArrayList<>();
+
+    private final List<Namespace> tagNamespaces = new ArrayList<>();
+
+    private final Set<String> recordNamespaces = new HashSet<>();
+
+    private int nameStart;
+
+    private int nameEnd;
+
+    private boolean emptyElement;
+
+    private Deque<Future<T>> pending;
+
+    private CompletionService<T> completionService;
+
+    // the tasks of the unordered mode that are not handed over yet, so they can be cancelled
+    private Set<Future<T>> running;
+
+    /**
+     * Creates a splitter.
+     *
+     * @param recordName the local name of the record elements
+     * @param executor the executor of the conversions
+     * @param maxPending the maximum number of records being converted, or waiting to be handed to the listener
+     * @param ordered true if the results are handed to the listener in the order of the records
+     */
+    public XmlParallelRecordSplitter(String recordName, ExecutorService executor, int maxPending, boolean ordered) {
+        this.recordName = recordName;
+        this.executor = executor;
+        this.maxPending = maxPending;
+        this.ordered = ordered;
+    }
+
+    public void split(InputStream in, final Converter<T> converter, Listener<T> listener) throws IOException {
+        this.in = in;
+        this.buf = new byte[BUFFER_SIZE];
+        this.limit = 0;
+        this.pos = 0;
+        this.tagStart = 0;
+        this.recordStart = -1;
+        this.declaration = null;
+        fill();
+        String encoding = encoding();
+        if (encoding == null) {
+            // not an ASCII based encoding, let the XML parser split
+            InputStream stream = new SequenceInputStream(new ByteArrayInputStream(buf, 0, limit), in);
+            splitSequential(stream, converter, listener);
+            return;
+        }
+        if (!"UTF-8".equalsIgnoreCase(encoding)) {
+            // records without a declaration would be read as UTF-8
+            declaration = ("<?xml version=\"1.0\" encoding=\"" + encoding + "\"?>").getBytes(Charsets.US_ASCII);
+        }
+        recordNameBytes = recordName.getBytes(encoding);
+        pending = new ArrayDeque<>();
+        completionService = new ExecutorCompletionService<>(executor);
+        running = new HashSet<>();
+        try {
+            byte[] record;
+            while ((record = nextRecord()) != null) {
+                final BytesReference bytes = new BytesArray(record);
+                submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        return converter.convert(bytes);
+                    }
+                }, listener);
+            }
+            drain(listener);
+        } finally {
+            cancel();
+            buf = null;
+            namespaces.clear();
+        }
+    }
+
+    private void splitSequential(InputStream in, final Converter<T> converter, final Listener<T> listener) throws IOException {
+        new XmlRecordSplitter(recordName).split(in, new XmlRecordSplitter.Listener() {
+            @Override
+            public void onRecord(BytesReference record) throws IOException {
+                listener.onResult(converter.convert(record));
+            }
+        });
+    }
+
+    private void submit(Callable<T> task, Listener<T> listener) throws IOException {
+        if (ordered) {
+            pending.add(executor.submit(task));
+            // hand over the results that are done, or wait for the oldest one if too many are pending
+            while (!pending.isEmpty() && (pending.size() > maxPending || pending.peekFirst().isDone())) {
+                listener.onResult(get(pending.removeFirst()));
+            }
+        } else {
+            running.add(completionService.submit(task));
+            // hand over the results that are done, or wait for one if too many are running
+            while (!running.isEmpty()) {
+                Future<T> future = running.size() > maxPending ? take() : completionService.poll();
+                if (future == null) {
+                    break;
+                }
+                running.remove(future);
+                listener.onResult(get(future));
+            }
+        }
+    }
+
+    private void drain(Listener<T> listener) throws IOException {
+        if (ordered) {
+            while (!pending.isEmpty()) {
+                listener.onResult(get(pending.removeFirst()));
+            }
+        } else {
+            while (!running.isEmpty()) {
+                Future<T> future = take();
+                running.remove(future);
+                listener.onResult(get(future));
+            }
+        }
+    }
+
+    private void cancel() {
+        for (Future<T> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+        for (Future<T> future : running) {
+            future.cancel(true);
+        }
+        running.clear();
+    }
+
+    private Future<T> take() throws IOException {
+        try {
+            return completionService.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    private T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * The encoding of the stream, if it is based on ASCII.
+     *
+     * @return the encoding, or null if the markup is not ASCII
+     */
+    private String encoding() {
+        if (limit >= 2 && (buf[0] == 0 || buf[1] == 0 || (buf[0] & 0xff) == 0xfe || (buf[0] & 0xff) == 0xff)) {
+            // UTF-16 or UTF-32
+            return null;
+        }
+        if (limit >= 4 && (buf[0] & 0xff) == 0x4c && (buf[1] & 0xff) == 0x6f) {
+            // EBCDIC
+            return null;
+        }
+        if (limit >= 3 && (buf[0] & 0xff) == 0xef && (buf[1] & 0xff) == 0xbb && (buf[2] & 0xff) == 0xbf) {
+            return "UTF-8";
+        }
+        int end = 0;
+        while (end < limit && buf[end] != '>') {
+            end++;
+        }
+        Matcher matcher = ENCODING.matcher(new String(buf, 0, end, Charsets.ISO_8859_1));
+        if (!matcher.find()) {
+            return "UTF-8";
+        }
+        String encoding = matcher.group(1);
+        try {
+            return "A".equals(new String(new byte[] { 'A' }, encoding)) ? encoding : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Scans the stream for the next record.
+     *
+     * @return the bytes of the record as a standalone document, or null at the end of the stream
+     */
+    private byte[] nextRecord() throws IOException {
+        while (true) {
+            int i = pos;
+            while (true) {
+                // the tight loop
+                while (i < limit && buf[i] != '<') {
+                    i++;
+                }
+                if (i < limit) {
+                    break;
+                }
+                pos = i;
+                tagStart = i;
+                if (!fill()) {
+                    if (recordStart >= 0) {
+                        throw new IOException("unexpected end of XML in record " + recordName);
+                    }
+                    return null;
+                }
+                i = pos;
+            }
+            tagStart = i;
+            pos = i + 1;
+            int c = next();
+            if (c == '!') {
+                skipDeclaration();
+            } else if (c == '?') {
+                skipTo(PI_END);
+            } else if (c == '/') {
+                readName(next());
+                skipTo('>');
+                if (recordStart >= 0) {
+                    if (isRecordName() && --nesting == 0) {
+                        return record();
+                    }
+                } else if (!namespaces.isEmpty()) {
+                    namespaces.remove(namespaces.size() - 1);
+                }
+            } else if (c >= 0) {
+                readName(c);
+                boolean record = isRecordName();
+                if (recordStart >= 0) {
+                    readAttributes(false);
+                    if (record && !emptyElement) {
+                        nesting++;
+                    }
+                } else if (record) {
+                    recordStart = tagStart;
+                    recordNameEnd = nameEnd;
+                    readAttributes(true);
+                    recordNamespaces.clear();
+                    for (Namespace namespace : tagNamespaces) {
+                        recordNamespaces.add(namespace.name);
+                    }
+                    if (emptyElement) {
+                        return record();
+                    }
+                    nesting = 1;
+                } else {
+                    readAttributes(true);
+                    if (!emptyElement) {
+                        namespaces.add(tagNamespaces.isEmpty() ?
+                                Collections.<Namespace>emptyList() : new ArrayList<>(tagNamespaces));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the record, with the namespace declarations in scope added to its start tag.
+     */
+    private byte[] record() {
+        Set<String> declared = new HashSet<>(recordNamespaces);
+        int length = pos - recordStart + (declaration != null ? declaration.length : 0);
+        List<Namespace> added = new ArrayList<>();
+        for (int i = namespaces.size() - 1; i >= 0; i--) {
+            for (Namespace namespace : namespaces.get(i)) {
+                if (declared.add(namespace.name)) {
+                    added.add(namespace);
+                    length += 1 + namespace.bytes.length;
+                }
+            }
+        }
+        byte[] record = new byte[length];
+        int n = 0;
+        if (declaration != null) {
+            System.arraycopy(declaration, 0, record, 0, declaration.length);
+            n = declaration.length;
+        }
+        System.arraycopy(buf, recordStart, record, n, recordNameEnd - recordStart);
+        n += recordNameEnd - recordStart;
+        for (Namespace namespace : added) {
+            record[n++] = ' ';
+            System.arraycopy(namespace.bytes, 0, record, n, namespace.bytes.length);
+            n += namespace.bytes.length;
+        }
+        System.arraycopy(buf, recordNameEnd, record, n, pos - recordNameEnd);
+        recordStart = -1;
+        return record;
+    }
+
+    private boolean isRecordName() {
+        int start = nameStart;
+        for (int i = nameStart; i < nameEnd; i++) {
+            if (buf[i] == ':') {
+                start = i + 1;
+            }
+        }
+        if (nameEnd - start != recordNameBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < recordNameBytes.length; i++) {
+            if (buf[start + i] != recordNameBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void readName(int c) throws IOException {
+        nameStart = pos - 1;
+        while (c >= 0 && c != '>' && c != '/' && c > ' ') {
+            c = next();
+        }
+        if (c >= 0) {
+            pos--;
+        }
+        nameEnd = pos;
+    }
+
+    /**
+     * Reads the attributes up to the end of a start tag.
+     *
+     * @param collect true if namespace declarations are collected
+     */
+    private void readAttributes(boolean collect) throws IOException {
+        tagNamespaces.clear();
+        emptyElement = false;
+        int c;
+        while ((c = next()) >= 0) {
+            if (c == '>') {
+                return;
+            }
+            if (c == '/') {
+                emptyElement = true;
+            } else if (c > ' ') {
+                emptyElement = false;
+                // offsets to the tag, the buffer may be compacted while reading
+                int attributeStart = pos - 1 - tagStart;
+                while (c >= 0 && c != '=') {
+                    c = next();
+                }
+                int nameEnd = pos - 1 - tagStart;
+                int quote = next();
+                while (quote >= 0 && quote <= ' ') {
+                    quote = next();
+                }
+                while ((c = next()) >= 0 && c != quote) {
+                    // the value
+                }
+                if (collect) {
+                    String name = new String(buf, tagStart + attributeStart, nameEnd - attributeStart,
+                            Charsets.ISO_8859_1).trim();
+                    if (name.equals("xmlns") || name.startsWith("xmlns:")) {
+                        tagNamespaces.add(new Namespace(name, Arrays.copyOfRange(buf, tagStart + attributeStart, pos)));
+                    }
+                }
+            }
+        }
+    }
+
+    private void skipDeclaration() throws IOException {
+        int c = next();
+        if (c == '-') {
+            next();
+            skipTo(COMMENT_END);
+        } else if (c == '[') {
+            skipTo(CDATA_END);
+        } else {
+            // a document type declaration, maybe with an internal subset
+            int brackets = 0;
+            int quote = 0;
+            while (c >= 0) {
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '[') {
+                    brackets++;
+                } else if (c == ']') {
+                    brackets--;
+                } else if (c == '>' && brackets == 0) {
+                    return;
+                }
+                c = next();
+            }
+        }
+    }
+
+    private void skipTo(int b) throws IOException {
+        int c;
+        while ((c = next()) >= 0 && c != b) {
+            // skip
+        }
+    }
+
+    private void skipTo(byte[] end) throws IOException {
+        // the end is two or three bytes long
+        int a = -1;
+        int b = -1;
+        int c;
+        while ((c = next()) >= 0) {
+            if (end.length == 2 ? b == end[0] && c == end[1] : a == end[0] && b == end[1] && c == end[2]) {
+                return;
+            }
+            a = b;
+            b = c;
+        }
+    }
+
+    private int next() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    /**
+     * Reads more bytes, keeping the bytes of the current record or tag.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        int keep = recordStart >= 0 ? recordStart : Math.min(tagStart, pos);
+        if (limit == buf.length) {
+            if (keep > 0) {
+                System.arraycopy(buf, keep, buf, 0, limit - keep);
+                limit -= keep;
+                pos -= keep;
+                tagStart -= keep;
+                nameStart -= keep;
+                nameEnd -= keep;
+                if (recordStart >= 0) {
+                    recordStart -= keep;
+                    recordNameEnd -= keep;
+                }
+            } else {
+                buf = ArrayUtil.grow(buf, buf.length + 1);
+            }
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    /**
+     * Converts a record, called in a task of the executor.
+     *
+     * @param <T> the type of the converted record
+     */
+    public interface Converter<T> {
+
+        T convert(BytesReference record) throws IOException;
+    }
+
+    /**
+     * Receives the converted records, in the thread of the splitter.
+     *
+     * @param <T> the type of the converted record
+     */
+    public interface Listener<T> {
+
+        void onResult(T result) throws IOException;
+    }
+
+    private static class Namespace {
+
+        private final String name;
+
+        private final byte[] bytes;
+
+        Namespace(String name, byte[] bytes) {
+            this.name = name;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.xbib.elasticsearch.common.xcontent.xml;
+
+import org.elasticsearch.common.metrics.CounterMetric;
+
+import javax.xml.namespace.QName;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A bounded cache of the QNames of JSON names.
+ *
+ * Entries are valid for a version of the namespace context only. If the cache is full,
+ * new names are no longer added, because the names that are repeated most are usually seen first.
+ */
+public class XmlQNameCache {
+
+    public static final int DEFAULT_SIZE = 4096;
+
+    private final int size;
+
+    private final ConcurrentMap<String, Entry> entries;
+
+    private final CounterMetric hits = new CounterMetric();
+
+    private final CounterMetric misses = new CounterMetric();
+
+    public XmlQNameCache() {
+        this(DEFAULT_SIZE);
+    }
+
+    public XmlQNameCache(int size) {
+        this.size = size;
+        this.entries = new ConcurrentHashMap<>();
+    }
+
+    public QName get(String name, long version) {
+        Entry entry = entries.get(name);
+        if (entry != null && entry.version == version) {
+            hits.inc();
+            return entry.qname;
+        }
+        misses.inc();
+        return null;
+    }
+
+    public void put(String name, long version, QName qname) {
+        if (entries.size() < size || entries.containsKey(name)) {
+            entries.put(name, new Entry(version, qname));
+        }
+    }
+
+    public long hits() {
+        return hits.count();
+    }
+
+    public long misses() {
+        return misses.count();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static class Entry {
+
+        private final long version;
+
+        private final QName qname;
+
+        Entry(long version, QName qname) {
+            this.version = version;
+            this.qname = qname;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.xbib.elasticsearch.common.xcontent.xml;
+
+import org.codehaus.stax2.XMLStreamReader2;
+import org.codehaus.stax2.XMLStreamWriter2;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits an XML stream into records.
+ *
+ * A record is an element with a given local name, at any depth. Records are read one after another
+ * with the Woodstox stream reader and handed over as standalone XML documents, so only one record
+ * is held in memory at a time. Namespaces declared outside of a record are repeated in the record.
+ * Records nested into records are not split.
+ */
+public class XmlRecordSplitter {
+
+    private final String recordName;
+
+    public XmlRecordSplitter(String recordName) {
+        this.recordName = recordName;
+    }
+
+    public void split(InputStream in, Listener listener) throws IOException {
+        XMLStreamReader2 reader = null;
+        try {
+            reader = (XMLStreamReader2) XmlXContent.xmlFactory().getXMLInputFactory().createXMLStreamReader(in);
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && recordName.equals(reader.getLocalName())) {
+                    listener.onRecord(copyRecord(reader));
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.closeCompletely();
+                } catch (XMLStreamException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private BytesReference copyRecord(XMLStreamReader2 reader) throws XMLStreamException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        XMLStreamWriter2 writer = (XMLStreamWriter2) XmlXContent.xmlFactory().getXMLOutputFactory()
+                .createXMLStreamWriter(out, "UTF-8");
+        int depth = 0;
+        while (true) {
+            int event = reader.getEventType();
+            if (event == XMLStreamConstants.PROCESSING_INSTRUCTION) {
+                // copying a processing instruction does not close a pending start element
+                writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+            } else {
+                writer.copyEventFromReader(reader, false);
+            }
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT && --depth == 0) {
+                break;
+            }
+            reader.next();
+        }
+        writer.close();
+        return out.bytes();
+    }
+
+    /**
+     * Receives the records of an XML stream.
+     */
+    public interface Listener {
+
+        void onRecord(BytesReference record) throws IOException;
+    }
+}
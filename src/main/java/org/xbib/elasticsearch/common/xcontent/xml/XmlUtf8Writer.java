@@ -0,0 +1,1131 @@
+package org.xbib.elasticsearch.common.xcontent.xml;
+
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.Base64Variants;
+import com.google.common.base.Charsets;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.recycler.Recycler;
+import org.elasticsearch.common.recycler.Recyclers;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Writes XML as UTF-8 bytes into a pooled buffer.
+ *
+ * Namespaces are repaired, and text and attribute values are escaped, by the rules of the Woodstox
+ * stream writer, so the output is the same as the output of the Jackson generator. The UTF-8 bytes
+ * of names are cached, and ASCII characters are escaped by lookup tables.
+ */
+class XmlUtf8Writer {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int NAMES_SIZE = 4096;
+
+    /**
+     * The longest output of a single char, a character reference like "&amp;#xffff;".
+     */
+    private static final int MAX_CHAR_LENGTH = 8;
+
+    private static final String AUTOMATIC_PREFIX = "wstxns";
+
+    /**
+     * The length of the Strings that Woodstox writes by themselves, and the length of the segments
+     * of longer Strings.
+     */
+    private static final int SMALL_TEXT_LENGTH = 11;
+
+    private static final int SEGMENT_LENGTH = 512;
+
+    private static final byte[] LINE_SEPARATOR;
+
+    private static final byte[] INVALID = new byte[0];
+
+    private static final byte[][] TEXT_ESCAPES = new byte[128][];
+
+    private static final byte[][] ATTRIBUTE_ESCAPES = new byte[128][];
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(Charsets.US_ASCII);
+
+    // the two digits of each number below 100
+    private static final byte[] DIGIT_TENS = new byte[100];
+
+    private static final byte[] DIGIT_ONES = new byte[100];
+
+    private static final long[] LONG_POWERS_OF_TEN = new long[19];
+
+    // all powers of ten up to 10^15 are exact doubles, so dividing by them rounds correctly
+    private static final double[] POWERS_OF_TEN = new double[16];
+
+    private static final String MIN_LONG = Long.toString(Long.MIN_VALUE);
+
+    /**
+     * Doubles and floats with up to this many significant digits are written from their digits, longer ones
+     * by Double.toString and Float.toString. Within these digits, the decimal that rounds to the value is
+     * unique, so it is the one the JDK writes.
+     */
+    private static final int DOUBLE_DIGITS = 15;
+
+    private static final int FLOAT_DIGITS = 8;
+
+    private static final ConcurrentMap<String, byte[]> names = new ConcurrentHashMap<>();
+
+    // the namespace declarations of the shared namespace contexts, by prefix and namespace URI,
+    // the default namespace has the empty prefix
+
+    private static final ConcurrentMap<String, ConcurrentMap<String, byte[]>> declarations = new ConcurrentHashMap<>();
+
+    private static final Recycler<byte[]> buffers = Recyclers.concurrentDeque(new Recycler.C<byte[]>() {
+        @Override
+        public byte[] newInstance(int sizing) {
+            return new byte[BUFFER_SIZE];
+        }
+
+        @Override
+        public void recycle(byte[] value) {
+            // buffers are overwritten
+        }
+
+        @Override
+        public void destroy(byte[] value) {
+            // nothing to release
+        }
+    }, 64);
+
+    static {
+        String lineSeparator = System.getProperty("line.separator");
+        LINE_SEPARATOR = (lineSeparator != null ? lineSeparator : "\n").getBytes(Charsets.US_ASCII);
+        for (int i = 0; i < 0x20; i++) {
+            TEXT_ESCAPES[i] = INVALID;
+            ATTRIBUTE_ESCAPES[i] = INVALID;
+        }
+        TEXT_ESCAPES['\t'] = null;
+        TEXT_ESCAPES['\n'] = null;
+        TEXT_ESCAPES['\r'] = ascii("&#xd;");
+        TEXT_ESCAPES['&'] = ascii("&amp;");
+        TEXT_ESCAPES['<'] = ascii("&lt;");
+        // only escaped at the start of a text or after ']', see writeEscaped
+        TEXT_ESCAPES['>'] = ascii("&gt;");
+        TEXT_ESCAPES[0x7f] = ascii("&#x7f;");
+        ATTRIBUTE_ESCAPES['\t'] = ascii("&#x9;");
+        ATTRIBUTE_ESCAPES['\n'] = ascii("&#xa;");
+        ATTRIBUTE_ESCAPES['\r'] = ascii("&#xd;");
+        ATTRIBUTE_ESCAPES['&'] = ascii("&amp;");
+        ATTRIBUTE_ESCAPES['<'] = ascii("&lt;");
+        ATTRIBUTE_ESCAPES['"'] = ascii("&quot;");
+        for (int i = 0; i < 100; i++) {
+            DIGIT_TENS[i] = (byte) ('0' + i / 10);
+            DIGIT_ONES[i] = (byte) ('0' + i % 10);
+        }
+        long power = 1L;
+        for (int i = 0; i < LONG_POWERS_OF_TEN.length; i++) {
+            LONG_POWERS_OF_TEN[i] = power;
+            if (i < POWERS_OF_TEN.length) {
+                POWERS_OF_TEN[i] = power;
+            }
+            power *= 10L;
+        }
+    }
+
+    private static final int PROLOG = 0;
+
+    private static final int TREE = 1;
+
+    private static final int EPILOG = 2;
+
+    private final OutputStream out;
+
+    private Recycler.V<byte[]> buffer;
+
+    private byte[] buf;
+
+    private int pos;
+
+    private char[] chars;
+
+    private int state;
+
+    private boolean startTagOpen;
+
+    private boolean emptyElement;
+
+    // the open elements, with the default namespace in their scope and the number of namespace bindings before them
+
+    private String[] elementPrefixes = new String[16];
+
+    private String[] elementNames = new String[16];
+
+    private String[] defaultNamespaces = new String[16];
+
+    private int[] bindingMarks = new int[16];
+
+    private int depth;
+
+    // the namespace bindings of the open elements, innermost last
+
+    private String[] prefixes = new String[16];
+
+    private String[] uris = new String[16];
+
+    private int bindings;
+
+    private String documentDefaultNamespace = "";
+
+    private String rootDefaultNamespace;
+
+    private Map<String, String> rootNamespaces = Collections.emptyMap();
+
+    private String suggestedDefaultNamespace;
+
+    private Map<String, String> suggestedPrefixes = Collections.emptyMap();
+
+    private int automaticPrefix = 1;
+
+    XmlUtf8Writer(OutputStream out) {
+        this.out = out;
+        this.buffer = buffers.obtain();
+        this.buf = buffer.v();
+    }
+
+    /**
+     * Sets the namespaces that are declared in the enclosing document of a fragment.
+     *
+     * @param defaultNamespace the default namespace URI
+     * @param namespaces the prefixes and namespace URIs
+     */
+    void setRootNamespaces(String defaultNamespace, Map<String, String> namespaces) {
+        this.rootDefaultNamespace = defaultNamespace;
+        this.rootNamespaces = namespaces != null ? namespaces : Collections.<String, String>emptyMap();
+        if (defaultNamespace != null && defaultNamespace.length() > 0) {
+            documentDefaultNamespace = defaultNamespace;
+        }
+    }
+
+    /**
+     * Sets the namespace URI that is declared as default namespace if an element needs it.
+     *
+     * @param uri the namespace URI
+     */
+    void setDefaultNamespace(String uri) {
+        this.suggestedDefaultNamespace = uri;
+    }
+
+    /**
+     * Sets the prefixes that are declared if an element or attribute in their namespace needs a prefix.
+     * Like the prefixes set on the Woodstox stream writer, the last prefix of a namespace URI is used.
+     *
+     * @param namespaces the prefixes and namespace URIs
+     */
+    void setSuggestedPrefixes(Map<String, String> namespaces) {
+        this.suggestedPrefixes = namespaces != null ? namespaces : Collections.<String, String>emptyMap();
+    }
+
+    void writeStartElement(QName name) throws IOException {
+        startElement(name, false);
+    }
+
+    void writeEmptyElement(QName name) throws IOException {
+        startElement(name, true);
+    }
+
+    void writeEndElement() throws IOException {
+        if (startTagOpen && emptyElement) {
+            closeStartTag();
+        }
+        if (depth == 0) {
+            throw new IOException("no open start element, when trying to write end element");
+        }
+        if (startTagOpen) {
+            ensure(2);
+            buf[pos++] = '/';
+            buf[pos++] = '>';
+            startTagOpen = false;
+        } else {
+            ensure(2);
+            buf[pos++] = '<';
+            buf[pos++] = '/';
+            writeName(elementPrefixes[depth - 1], elementNames[depth - 1]);
+            ensure(1);
+            buf[pos++] = '>';
+        }
+        pop();
+    }
+
+    /**
+     * Writes a namespace declaration on the current element, if the prefix is not bound yet.
+     *
+     * @param prefix the prefix
+     * @param uri the namespace URI
+     * @throws IOException if there is no open start element
+     */
+    void writeNamespace(String prefix, String uri) throws IOException {
+        if (!startTagOpen) {
+            throw new IOException("trying to write a namespace declaration when there is no open start element");
+        }
+        if (prefix == null || prefix.isEmpty()) {
+            String elementPrefix = elementPrefixes[depth - 1];
+            if (elementPrefix != null && elementPrefix.length() > 0) {
+                defaultNamespaces[depth - 1] = uri;
+                writeNamespaceDeclaration(null, uri);
+            }
+            return;
+        }
+        if (findNamespaceURI(prefix) == null) {
+            bind(prefix, uri);
+            writeNamespaceDeclaration(prefix, uri);
+        }
+    }
+
+    void writeAttribute(QName name, String value) throws IOException {
+        checkStartTagOpen();
+        String prefix = attributePrefix(name);
+        if (value == null) {
+            throw new IOException("no value for attribute " + name.getLocalPart());
+        }
+        startAttribute(prefix, name.getLocalPart());
+        writeEscaped(value, true);
+        endAttribute();
+    }
+
+    void writeAttribute(QName name, char[] value, int offset, int length) throws IOException {
+        checkStartTagOpen();
+        startAttribute(attributePrefix(name), name.getLocalPart());
+        writeEscaped(value, offset, offset + length, true, ']', true);
+        endAttribute();
+    }
+
+    void writeUtf8Attribute(QName name, byte[] value, int offset, int length) throws IOException {
+        checkStartTagOpen();
+        startAttribute(attributePrefix(name), name.getLocalPart());
+        writeUtf8Escaped(value, offset, offset + length, true);
+        endAttribute();
+    }
+
+    void writeAttribute(QName name, long value) throws IOException {
+        startTypedAttribute(name);
+        writeLong(value);
+        endAttribute();
+    }
+
+    void writeAttribute(QName name, double value) throws IOException {
+        startTypedAttribute(name);
+        writeDouble(value);
+        endAttribute();
+    }
+
+    void writeAttribute(QName name, float value) throws IOException {
+        startTypedAttribute(name);
+        writeFloat(value);
+        endAttribute();
+    }
+
+    /**
+     * Writes an attribute value that needs no escaping, like a boolean.
+     */
+    void writeAsciiAttribute(QName name, String value) throws IOException {
+        startTypedAttribute(name);
+        writeAsciiText(value);
+        endAttribute();
+    }
+
+    void writeBinaryAttribute(QName name, byte[] data, int offset, int length) throws IOException {
+        startTypedAttribute(name);
+        writeBase64(data, offset, length);
+        endAttribute();
+    }
+
+    void writeCharacters(String text) throws IOException {
+        closeStartTagIfOpen();
+        writeEscaped(text, false);
+    }
+
+    void writeCharacters(char[] text, int offset, int length) throws IOException {
+        closeStartTagIfOpen();
+        writeEscaped(text, offset, offset + length, false, ']', true);
+    }
+
+    void writeUtf8Characters(byte[] text, int offset, int length) throws IOException {
+        closeStartTagIfOpen();
+        writeUtf8Escaped(text, offset, offset + length, false);
+    }
+
+    void writeNumber(long value) throws IOException {
+        closeStartTagIfOpen();
+        writeLong(value);
+    }
+
+    void writeNumber(double value) throws IOException {
+        closeStartTagIfOpen();
+        writeDouble(value);
+    }
+
+    void writeNumber(float value) throws IOException {
+        closeStartTagIfOpen();
+        writeFloat(value);
+    }
+
+    /**
+     * Writes text that needs no escaping, like a boolean or a big number.
+     */
+    void writeAscii(String text) throws IOException {
+        closeStartTagIfOpen();
+        writeAsciiText(text);
+    }
+
+    void writeBinary(byte[] data, int offset, int length) throws IOException {
+        closeStartTagIfOpen();
+        writeBase64(data, offset, length);
+    }
+
+    void writeIndentation(int level) throws IOException {
+        closeStartTagIfOpen();
+        writeBytes(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+        int n = 2 * level;
+        ensure(Math.min(n, buf.length));
+        while (n > 0) {
+            int len = Math.min(n, buf.length - pos);
+            Arrays.fill(buf, pos, pos + len, (byte) ' ');
+            pos += len;
+            n -= len;
+            if (n > 0) {
+                flushBuffer();
+            }
+        }
+    }
+
+    /**
+     * Writes UTF-8 bytes as they are, after a pending start tag is closed.
+     *
+     * @param content the bytes
+     * @throws IOException if the bytes can not be written
+     */
+    void writeRaw(BytesReference content) throws IOException {
+        closeStartTagIfOpen();
+        flushBuffer();
+        content.writeTo(out);
+    }
+
+    void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            if (state != EPILOG) {
+                closeStartTagIfOpen();
+                while (depth > 0) {
+                    writeEndElement();
+                }
+            }
+            flushBuffer();
+        } finally {
+            buffer.close();
+            buffer = null;
+            buf = null;
+            out.close();
+        }
+    }
+
+    private void startElement(QName name, boolean empty) throws IOException {
+        String uri = name.getNamespaceURI();
+        String localName = name.getLocalPart();
+        if (state == EPILOG) {
+            throw new IOException("trying to output second root, <" + localName + ">");
+        }
+        closeStartTagIfOpen();
+        String prefix = findElementPrefix(uri);
+        push(localName);
+        boolean declare = prefix == null;
+        if (declare) {
+            prefix = generateElementPrefix(uri);
+        }
+        elementPrefixes[depth - 1] = prefix;
+        ensure(1);
+        buf[pos++] = '<';
+        writeName(prefix, localName);
+        if (declare) {
+            if (prefix.isEmpty()) {
+                defaultNamespaces[depth - 1] = uri;
+                writeNamespaceDeclaration(null, uri);
+            } else {
+                bind(prefix, uri);
+                writeNamespaceDeclaration(prefix, uri);
+            }
+        }
+        state = TREE;
+        startTagOpen = true;
+        emptyElement = empty;
+    }
+
+    /**
+     * Typed values, like numbers, are checked for an open start element after the prefix is found,
+     * so a namespace declaration may be written before the error, as in Woodstox.
+     */
+    private void startTypedAttribute(QName name) throws IOException {
+        String prefix = attributePrefix(name);
+        checkStartTagOpen();
+        startAttribute(prefix, name.getLocalPart());
+    }
+
+    /**
+     * The prefix of an attribute. If the namespace is not in scope, the suggested prefix is declared,
+     * unless it is bound in the scope, then a prefix is generated and declared.
+     */
+    private String attributePrefix(QName name) throws IOException {
+        String uri = name.getNamespaceURI();
+        if (uri == null || uri.isEmpty()) {
+            return null;
+        }
+        String prefix = findPrefix(uri);
+        if (prefix == null) {
+            String rootPrefix = findRootPrefix(uri);
+            if (rootPrefix != null && rootPrefix.length() > 0) {
+                prefix = rootPrefix;
+            }
+        }
+        if (prefix == null) {
+            String suggestedPrefix = findSuggestedPrefix(uri);
+            prefix = suggestedPrefix != null && suggestedPrefix.length() > 0 && findNamespaceURI(suggestedPrefix) == null ?
+                    suggestedPrefix : generatePrefix();
+            bind(prefix, uri);
+            writeNamespaceDeclaration(prefix, uri);
+        }
+        return prefix;
+    }
+
+    private void startAttribute(String prefix, String localName) throws IOException {
+        ensure(1);
+        buf[pos++] = ' ';
+        writeName(prefix, localName);
+        ensure(2);
+        buf[pos++] = '=';
+        buf[pos++] = '"';
+    }
+
+    private void checkStartTagOpen() throws IOException {
+        if (!startTagOpen) {
+            throw new IOException("trying to write an attribute when there is no open start element");
+        }
+    }
+
+    private void endAttribute() throws IOException {
+        ensure(1);
+        buf[pos++] = '"';
+    }
+
+    /**
+     * Namespace declarations of the suggested namespaces, which come from a shared namespace context, are written
+     * from their cached bytes. The bytes are taken from the buffer when a declaration is written for the first time.
+     * Declarations of a single document, like the prefixes of its @context or generated prefixes, are not cached.
+     */
+    private void writeNamespaceDeclaration(String prefix, String uri) throws IOException {
+        String value = uri != null ? uri : "";
+        if (!isSuggested(prefix, value)) {
+            writeDeclaration(prefix, value);
+            return;
+        }
+        String key = prefix != null ? prefix : "";
+        ConcurrentMap<String, byte[]> uris = declarations.get(key);
+        byte[] bytes = uris != null ? uris.get(value) : null;
+        if (bytes != null) {
+            writeBytes(bytes, 0, bytes.length);
+            return;
+        }
+        int length = 10 + key.length() * 3 + value.length() * MAX_CHAR_LENGTH;
+        if (length > buf.length) {
+            writeDeclaration(prefix, value);
+            return;
+        }
+        ensure(length);
+        int start = pos;
+        writeDeclaration(prefix, value);
+        if (uris == null) {
+            if (declarations.size() >= NAMES_SIZE) {
+                return;
+            }
+            uris = new ConcurrentHashMap<>();
+            ConcurrentMap<String, byte[]> existing = declarations.putIfAbsent(key, uris);
+            if (existing != null) {
+                uris = existing;
+            }
+        }
+        if (uris.size() < NAMES_SIZE) {
+            uris.putIfAbsent(value, Arrays.copyOfRange(buf, start, pos));
+        }
+    }
+
+    private boolean isSuggested(String prefix, String uri) {
+        return prefix == null ? uri.equals(suggestedDefaultNamespace) : uri.equals(suggestedPrefixes.get(prefix));
+    }
+
+    private void writeDeclaration(String prefix, String uri) throws IOException {
+        ensure(6);
+        buf[pos++] = ' ';
+        buf[pos++] = 'x';
+        buf[pos++] = 'm';
+        buf[pos++] = 'l';
+        buf[pos++] = 'n';
+        buf[pos++] = 's';
+        if (prefix != null) {
+            ensure(1);
+            buf[pos++] = ':';
+            writeName(null, prefix);
+        }
+        ensure(2);
+        buf[pos++] = '=';
+        buf[pos++] = '"';
+        writeEscaped(uri, true);
+        endAttribute();
+    }
+
+    private void closeStartTagIfOpen() throws IOException {
+        if (startTagOpen) {
+            closeStartTag();
+        }
+    }
+
+    private void closeStartTag() throws IOException {
+        startTagOpen = false;
+        if (emptyElement) {
+            emptyElement = false;
+            ensure(2);
+            buf[pos++] = '/';
+            buf[pos++] = '>';
+            pop();
+        } else {
+            ensure(1);
+            buf[pos++] = '>';
+        }
+    }
+
+    private void push(String localName) {
+        if (depth == elementNames.length) {
+            int size = 2 * depth;
+            elementPrefixes = Arrays.copyOf(elementPrefixes, size);
+            elementNames = Arrays.copyOf(elementNames, size);
+            defaultNamespaces = Arrays.copyOf(defaultNamespaces, size);
+            bindingMarks = Arrays.copyOf(bindingMarks, size);
+        }
+        defaultNamespaces[depth] = defaultNamespace();
+        elementNames[depth] = localName;
+        bindingMarks[depth] = bindings;
+        depth++;
+    }
+
+    private void pop() {
+        depth--;
+        bindings = bindingMarks[depth];
+        if (depth == 0) {
+            state = EPILOG;
+        }
+    }
+
+    private void bind(String prefix, String uri) {
+        if (bindings == prefixes.length) {
+            prefixes = Arrays.copyOf(prefixes, 2 * bindings);
+            uris = Arrays.copyOf(uris, 2 * bindings);
+        }
+        prefixes[bindings] = prefix;
+        uris[bindings] = uri;
+        bindings++;
+    }
+
+    private String defaultNamespace() {
+        return depth > 0 ? defaultNamespaces[depth - 1] : documentDefaultNamespace;
+    }
+
+    /**
+     * The prefix of an element in the scope of the current element, or null if a namespace must be declared.
+     */
+    private String findElementPrefix(String uri) {
+        String defaultNamespace = defaultNamespace();
+        if (uri == null || uri.isEmpty()) {
+            return defaultNamespace != null && defaultNamespace.length() > 0 ? null : "";
+        }
+        if (uri.equals(defaultNamespace)) {
+            return "";
+        }
+        String prefix = findPrefix(uri);
+        return prefix != null ? prefix : findRootPrefix(uri);
+    }
+
+    /**
+     * As in Woodstox, an element gets the suggested default namespace, or the suggested prefix, even if
+     * the prefix is bound in the scope, or a generated prefix.
+     */
+    private String generateElementPrefix(String uri) {
+        if (uri == null || uri.isEmpty() || uri.equals(suggestedDefaultNamespace)) {
+            return "";
+        }
+        String prefix = findSuggestedPrefix(uri);
+        return prefix != null ? prefix : generatePrefix();
+    }
+
+    private String findSuggestedPrefix(String uri) {
+        String prefix = null;
+        for (Map.Entry<String, String> entry : suggestedPrefixes.entrySet()) {
+            if (entry.getValue().equals(uri)) {
+                prefix = entry.getKey();
+            }
+        }
+        return prefix;
+    }
+
+    private String generatePrefix() {
+        while (true) {
+            String prefix = AUTOMATIC_PREFIX + automaticPrefix++;
+            if (!isBound(prefix) && !rootNamespaces.containsKey(prefix)) {
+                return prefix;
+            }
+        }
+    }
+
+    private boolean isBound(String prefix) {
+        for (int i = 0; i < bindings; i++) {
+            if (prefixes[i].equals(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The innermost prefix bound to the namespace URI that is not masked by an inner binding of the same prefix.
+     */
+    private String findPrefix(String uri) {
+        if (XMLConstants.XML_NS_URI.equals(uri)) {
+            return XMLConstants.XML_NS_PREFIX;
+        }
+        loop:
+        for (int i = bindings - 1; i >= 0; i--) {
+            if (uris[i].equals(uri)) {
+                String prefix = prefixes[i];
+                for (int j = i + 1; j < bindings; j++) {
+                    if (prefixes[j].equals(prefix)) {
+                        continue loop;
+                    }
+                }
+                return prefix;
+            }
+        }
+        return null;
+    }
+
+    private String findRootPrefix(String uri) {
+        for (Map.Entry<String, String> entry : rootNamespaces.entrySet()) {
+            if (entry.getValue().equals(uri)) {
+                return entry.getKey();
+            }
+        }
+        return uri.equals(rootDefaultNamespace) ? "" : null;
+    }
+
+    private String findNamespaceURI(String prefix) {
+        if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+            return XMLConstants.XML_NS_URI;
+        }
+        if (XMLConstants.XMLNS_ATTRIBUTE.equals(prefix)) {
+            return XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+        }
+        for (int i = bindings - 1; i >= 0; i--) {
+            if (prefixes[i].equals(prefix)) {
+                return uris[i];
+            }
+        }
+        return rootNamespaces.get(prefix);
+    }
+
+    private void writeName(String prefix, String localName) throws IOException {
+        if (prefix != null && prefix.length() > 0) {
+            byte[] b = utf8(prefix);
+            writeBytes(b, 0, b.length);
+            ensure(1);
+            buf[pos++] = ':';
+        }
+        byte[] b = utf8(localName);
+        writeBytes(b, 0, b.length);
+    }
+
+    /**
+     * Woodstox writes a short String by itself. A longer String is copied in segments, which are written
+     * like text from a char array.
+     */
+    private void writeEscaped(String text, boolean attribute) throws IOException {
+        if (text.length() <= SMALL_TEXT_LENGTH) {
+            writeEscaped(text, attribute, ']', false, false);
+        } else {
+            writeEscaped(text, attribute, ']', true, true);
+        }
+    }
+
+    /**
+     * @param segments true if '&gt;' is escaped at the start of each segment
+     */
+    private void writeEscaped(String text, boolean attribute, char previous, boolean array, boolean segments)
+            throws IOException {
+        int len = text.length();
+        if (chars == null) {
+            chars = new char[SEGMENT_LENGTH + 1];
+        }
+        int offset = 0;
+        while (offset < len) {
+            int n = Math.min(len - offset, SEGMENT_LENGTH - offset % SEGMENT_LENGTH);
+            if (offset + n < len && Character.isHighSurrogate(text.charAt(offset + n - 1))) {
+                // keep surrogate pairs together
+                n++;
+            }
+            text.getChars(offset, offset + n, chars, 0);
+            if (segments && offset % SEGMENT_LENGTH == 0) {
+                previous = ']';
+            }
+            previous = writeEscaped(chars, 0, n, attribute, previous, array);
+            offset += n;
+        }
+    }
+
+    /**
+     * Writes escaped text. As in Woodstox, '&gt;' is escaped in text at the start and after ']',
+     * and characters of the C1 control block are escaped in text, but not in attribute values.
+     * Woodstox writes text from a char array in segments between escaped characters, so '&gt;'
+     * is also escaped after an escaped character.
+     *
+     * @param previous the char before the text, or ']' at the start of the text
+     * @param array true if the text is written like text from a char array
+     * @return the char before the rest of the text
+     */
+    private char writeEscaped(char[] text, int start, int end, boolean attribute, char previous, boolean array)
+            throws IOException {
+        byte[][] escapes = attribute ? ATTRIBUTE_ESCAPES : TEXT_ESCAPES;
+        for (int i = start; i < end; i++) {
+            if (pos + MAX_CHAR_LENGTH > buf.length) {
+                flushBuffer();
+            }
+            char c = text[i];
+            boolean escaped = false;
+            if (c < 0x80) {
+                byte[] escape = escapes[c];
+                if (escape == null || (c == '>' && previous != ']')) {
+                    buf[pos++] = (byte) c;
+                } else if (escape == INVALID) {
+                    throw new IOException("invalid white space character (0x" + Integer.toHexString(c) + ") in text to output");
+                } else {
+                    System.arraycopy(escape, 0, buf, pos, escape.length);
+                    pos += escape.length;
+                    escaped = true;
+                }
+            } else if (c < 0x800) {
+                if (c < 0xa0 && !attribute) {
+                    writeCharacterReference(c);
+                    escaped = true;
+                } else {
+                    buf[pos++] = (byte) (0xc0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3f));
+                }
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                if (!Character.isHighSurrogate(c) || i + 1 >= end || !Character.isLowSurrogate(text[i + 1])) {
+                    throw new IOException("unpaired surrogate (0x" + Integer.toHexString(c) + ") in text to output");
+                }
+                int cp = Character.toCodePoint(c, text[++i]);
+                buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (c >= 0xfffe) {
+                writeCharacterReference(c);
+                escaped = true;
+            } else {
+                buf[pos++] = (byte) (0xe0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+            previous = escaped && array ? ']' : text[i];
+        }
+        return previous;
+    }
+
+    /**
+     * Writes escaped UTF-8 text, by the same rules as text from a char array. Well-formed multi-byte sequences are
+     * copied as they are. From the first malformed sequence on, the text is decoded with replacement
+     * characters, as by a String.
+     */
+    private void writeUtf8Escaped(byte[] text, int start, int end, boolean attribute) throws IOException {
+        byte[][] escapes = attribute ? ATTRIBUTE_ESCAPES : TEXT_ESCAPES;
+        char previous = ']';
+        int i = start;
+        while (i < end) {
+            if (pos + MAX_CHAR_LENGTH > buf.length) {
+                flushBuffer();
+            }
+            int b = text[i];
+            if (b >= 0) {
+                byte[] escape = escapes[b];
+                if (escape == null || (b == '>' && previous != ']')) {
+                    buf[pos++] = (byte) b;
+                    previous = (char) b;
+                } else if (escape == INVALID) {
+                    throw new IOException("invalid white space character (0x" + Integer.toHexString(b) + ") in text to output");
+                } else {
+                    System.arraycopy(escape, 0, buf, pos, escape.length);
+                    pos += escape.length;
+                    previous = ']';
+                }
+                i++;
+                continue;
+            }
+            int n = utf8SequenceLength(text, i, end);
+            if (n == 0) {
+                writeEscaped(new String(text, i, end - i, Charsets.UTF_8), attribute, previous, true, false);
+                return;
+            }
+            b &= 0xff;
+            if (n == 2 && b == 0xc2 && (text[i + 1] & 0xff) < 0xa0 && !attribute) {
+                // C1 control characters
+                writeCharacterReference((char) (text[i + 1] & 0xff));
+                previous = ']';
+            } else if (n == 3 && b == 0xef && text[i + 1] == (byte) 0xbf && (text[i + 2] & 0xff) >= 0xbe) {
+                // U+FFFE and U+FFFF
+                writeCharacterReference((char) (0xffc0 | (text[i + 2] & 0x3f)));
+                previous = ']';
+            } else {
+                System.arraycopy(text, i, buf, pos, n);
+                pos += n;
+                previous = 0;
+            }
+            i += n;
+        }
+    }
+
+    /**
+     * The length of the well-formed UTF-8 sequence at the given offset, or 0 if the sequence is malformed.
+     */
+    private static int utf8SequenceLength(byte[] text, int i, int end) {
+        int b = text[i] & 0xff;
+        int n;
+        int min = 0x80;
+        int max = 0xbf;
+        if (b >= 0xc2 && b <= 0xdf) {
+            n = 2;
+        } else if (b >= 0xe0 && b <= 0xef) {
+            n = 3;
+            if (b == 0xe0) {
+                min = 0xa0;
+            } else if (b == 0xed) {
+                // surrogates
+                max = 0x9f;
+            }
+        } else if (b >= 0xf0 && b <= 0xf4) {
+            n = 4;
+            if (b == 0xf0) {
+                min = 0x90;
+            } else if (b == 0xf4) {
+                max = 0x8f;
+            }
+        } else {
+            return 0;
+        }
+        if (i + n > end) {
+            return 0;
+        }
+        int c = text[i + 1] & 0xff;
+        if (c < min || c > max) {
+            return 0;
+        }
+        for (int j = i + 2; j < i + n; j++) {
+            if ((text[j] & 0xc0) != 0x80) {
+                return 0;
+            }
+        }
+        return n;
+    }
+
+    private void writeCharacterReference(char c) {
+        buf[pos++] = '&';
+        buf[pos++] = '#';
+        buf[pos++] = 'x';
+        int shift = 12;
+        while (shift > 0 && (c >> shift) == 0) {
+            shift -= 4;
+        }
+        for (; shift >= 0; shift -= 4) {
+            buf[pos++] = HEX[(c >> shift) & 0xf];
+        }
+        buf[pos++] = ';';
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writeAsciiText(MIN_LONG);
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buf[pos++] = '-';
+            value = -value;
+        }
+        writeDigits(value, digitCount(value));
+    }
+
+    private void writeDouble(double value) throws IOException {
+        if (!writeDecimal(value, false)) {
+            writeAsciiText(Double.toString(value));
+        }
+    }
+
+    private void writeFloat(float value) throws IOException {
+        if (!writeDecimal(value, true)) {
+            writeAsciiText(Float.toString(value));
+        }
+    }
+
+    /**
+     * Writes a value in the range where Double.toString and Float.toString write no exponent, if a decimal
+     * of a few digits rounds to it. The decimal with the fewest fraction digits is taken, and at least one
+     * fraction digit is written, like the JDK does.
+     *
+     * @return false if the value is left to the JDK
+     */
+    private boolean writeDecimal(double value, boolean isFloat) throws IOException {
+        double abs = Math.abs(value);
+        if (!(abs >= 1e-3 && abs < 1e7)) {
+            return false;
+        }
+        int integerDigits = abs < 1.0 ? 0 : digitCount((long) abs);
+        int maxDigits = isFloat ? FLOAT_DIGITS : DOUBLE_DIGITS;
+        for (int scale = 1; integerDigits + scale <= maxDigits; scale++) {
+            long digits = (long) Math.rint(abs * POWERS_OF_TEN[scale]);
+            double decimal = digits / POWERS_OF_TEN[scale];
+            if (isFloat ? (float) decimal == (float) abs : decimal == abs) {
+                ensure(maxDigits + 3);
+                if (value < 0) {
+                    buf[pos++] = '-';
+                }
+                long integer = digits / LONG_POWERS_OF_TEN[scale];
+                writeDigits(integer, digitCount(integer));
+                buf[pos++] = '.';
+                writeDigits(digits - integer * LONG_POWERS_OF_TEN[scale], scale);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the given number of the lowest digits of a value, two digits at a time.
+     */
+    private void writeDigits(long value, int count) {
+        int p = pos + count;
+        pos = p;
+        for (; count > 1; count -= 2) {
+            int r = (int) (value % 100);
+            value /= 100;
+            buf[--p] = DIGIT_ONES[r];
+            buf[--p] = DIGIT_TENS[r];
+        }
+        if (count == 1) {
+            buf[--p] = (byte) ('0' + value);
+        }
+    }
+
+    private static int digitCount(long value) {
+        int n = 1;
+        while (n < LONG_POWERS_OF_TEN.length && value >= LONG_POWERS_OF_TEN[n]) {
+            n++;
+        }
+        return n;
+    }
+
+    private void writeAsciiText(String text) throws IOException {
+        int len = text.length();
+        int offset = 0;
+        while (offset < len) {
+            if (pos == buf.length) {
+                flushBuffer();
+            }
+            int n = Math.min(len - offset, buf.length - pos);
+            for (int i = 0; i < n; i++) {
+                buf[pos++] = (byte) text.charAt(offset + i);
+            }
+            offset += n;
+        }
+    }
+
+    /**
+     * Base64 of the MIME variant, as written by the typed Stax2 writers, with a line feed after each 76 characters.
+     */
+    private void writeBase64(byte[] data, int offset, int length) throws IOException {
+        Base64Variant variant = Base64Variants.MIME;
+        int chunksBeforeLineFeed = variant.getMaxLineLength() >> 2;
+        int end = offset + length;
+        while (end - offset >= 3) {
+            ensure(5);
+            int b24 = ((data[offset] & 0xff) << 16) | ((data[offset + 1] & 0xff) << 8) | (data[offset + 2] & 0xff);
+            pos = variant.encodeBase64Chunk(b24, buf, pos);
+            offset += 3;
+            if (--chunksBeforeLineFeed <= 0) {
+                buf[pos++] = '\n';
+                chunksBeforeLineFeed = variant.getMaxLineLength() >> 2;
+            }
+        }
+        int remaining = end - offset;
+        if (remaining > 0) {
+            ensure(4);
+            int b24 = (data[offset] & 0xff) << 16;
+            if (remaining == 2) {
+                b24 |= (data[offset + 1] & 0xff) << 8;
+            }
+            pos = variant.encodeBase64Partial(b24, remaining, buf, pos);
+        }
+    }
+
+    private void writeBytes(byte[] b, int offset, int length) throws IOException {
+        if (length > buf.length - pos) {
+            flushBuffer();
+            if (length > buf.length) {
+                out.write(b, offset, length);
+                return;
+            }
+        }
+        System.arraycopy(b, offset, buf, pos, length);
+        pos += length;
+    }
+
+    private void ensure(int n) throws IOException {
+        if (pos + n > buf.length) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+
+    private static byte[] utf8(String name) {
+        byte[] b = names.get(name);
+        if (b == null) {
+            b = name.getBytes(Charsets.UTF_8);
+            if (names.size() < NAMES_SIZE) {
+                names.putIfAbsent(name, b);
+            }
+        }
+        return b;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(Charsets.US_ASCII);
+    }
+}
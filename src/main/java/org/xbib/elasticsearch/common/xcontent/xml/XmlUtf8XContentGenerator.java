@@ -0,0 +1,718 @@
+package org.xbib.elasticsearch.common.xcontent.xml;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.base.Charsets;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentString;
+
+import javax.xml.namespace.QName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Content generator for XML format, writing UTF-8 bytes without Jackson and StaX.
+ *
+ * The output is the same as the output of {@link XmlXContentGenerator}: objects, arrays and values
+ * are mapped to elements and attributes like the Jackson XML generator does, and namespaces are
+ * repaired and text is escaped like the Woodstox stream writer does.
+ */
+public class XmlUtf8XContentGenerator extends AbstractXmlXContentGenerator {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(XmlUtf8XContentGenerator.class.getName());
+
+    private final static int ROOT = 0;
+
+    private final static int ARRAY = 1;
+
+    private final static int OBJECT = 2;
+
+    private final XmlUtf8Writer writer;
+
+    // the JSON write context, like in Jackson
+
+    private int[] contexts = new int[16];
+
+    private boolean[] gotNames = new boolean[16];
+
+    private int level;
+
+    // the element names of the open objects, like in the Jackson XML generator
+
+    private final List<QName> names = new ArrayList<>();
+
+    private QName nextName;
+
+    private boolean nextIsAttribute;
+
+    private boolean pretty;
+
+    private int nesting;
+
+    private boolean justHadStartElement;
+
+    private boolean closed;
+
+    public XmlUtf8XContentGenerator(OutputStream out) {
+        this.writer = new XmlUtf8Writer(out);
+        this.contexts[0] = ROOT;
+    }
+
+    @Override
+    public void usePrettyPrint() {
+        pretty = true;
+    }
+
+    @Override
+    public void writeStartArray() throws IOException {
+        startArray();
+    }
+
+    @Override
+    public void writeEndArray() throws IOException {
+        endArray();
+    }
+
+    @Override
+    public void writeStartObject() throws IOException {
+        try {
+            if (!started && fragment != null) {
+                String defaultNamespaceURI = params.getQName().getNamespaceURI();
+                writer.setRootNamespaces(defaultNamespaceURI, rootNamespaces);
+                writer.setDefaultNamespace(defaultNamespaceURI);
+                writer.setSuggestedPrefixes(suggestedPrefixes());
+                nextName = toQName(fragment);
+                startObject();
+                started = true;
+                return;
+            }
+            if (!started) {
+                writer.setDefaultNamespace(params.getQName().getNamespaceURI());
+                writer.setSuggestedPrefixes(suggestedPrefixes());
+                nextName = params.getQName();
+            }
+            startObject();
+            if (!started ) {
+                rootNamespaces = new TreeMap<>();
+                if (params.isDeclareAllNamespaces() && suggestedPrefixes() != null) {
+                    for (Map.Entry<String, String> entry : suggestedPrefixes().entrySet()) {
+                        writer.writeNamespace(entry.getKey(), entry.getValue());
+                        rootNamespaces.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                started = true;
+            }
+        } catch (Exception e) {
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The prefixes of the namespace context are declared where an element or attribute needs them.
+     */
+    private Map<String, String> suggestedPrefixes() {
+        return getNamespaceContext() != null ? getNamespaceContext().getNamespaces() : null;
+    }
+
+    @Override
+    public void writeEndObject() throws IOException {
+        endObject();
+        context = false;
+    }
+
+    @Override
+    public void writeString(String text) throws IOException {
+        try {
+            string(text);
+            if (context && prefix != null) {
+                declareNamespace(prefix, text);
+                prefix = null;
+            }
+        } catch (Exception e) {
+            logger.warn(e.getMessage() + ": " + text, e);
+        }
+    }
+
+    @Override
+    public void writeString(char[] text, int offset, int len) throws IOException {
+        try {
+            string(text, offset, len);
+            if (context && prefix != null) {
+                declareNamespace(prefix, new String(text, offset, len));
+                prefix = null;
+            }
+        } catch (Exception e) {
+            logger.warn(e.getMessage() + ": " + new String(text, offset, len), e);
+        }
+    }
+
+    @Override
+    public void writeUTF8String(byte[] text, int offset, int length) throws IOException {
+        try {
+            utf8String(text, offset, length);
+            if (context && prefix != null) {
+                declareNamespace(prefix, new String(text, offset, length, Charsets.UTF_8));
+                prefix = null;
+            }
+        } catch (Exception e) {
+            logger.warn(e.getMessage() + ": " + new String(text, offset, length, Charsets.UTF_8), e);
+        }
+    }
+
+    @Override
+    public void writeBinary(byte[] data, int offset, int len) throws IOException {
+        binary(data, offset, len);
+    }
+
+    @Override
+    public void writeBinary(byte[] data) throws IOException {
+        binary(data, 0, data != null ? data.length : 0);
+    }
+
+    @Override
+    public void writeNumber(int v) throws IOException {
+        number(v);
+    }
+
+    @Override
+    public void writeNumber(long v) throws IOException {
+        number(v);
+    }
+
+    @Override
+    public void writeNumber(double d) throws IOException {
+        number(d);
+    }
+
+    @Override
+    public void writeNumber(float f) throws IOException {
+        number(f);
+    }
+
+    @Override
+    public void writeBoolean(boolean state) throws IOException {
+        ascii("write boolean value", state ? "true" : "false");
+    }
+
+    @Override
+    public void writeBooleanField(XContentString fieldName, boolean value) throws IOException {
+        writeFieldName(fieldName);
+        writeBoolean(value);
+    }
+
+    @Override
+    public void writeNull() throws IOException {
+        nullValue();
+    }
+
+    @Override
+    public void writeNullField(XContentString fieldName) throws IOException {
+        writeFieldName(fieldName);
+        nullValue();
+    }
+
+    @Override
+    public void writeStringField(String fieldName, String value) throws IOException {
+        try {
+            writeFieldNameXml(fieldName);
+            string(value);
+            if (context && value != null) {
+                declareNamespace(fieldName, value);
+            }
+            prefix = null;
+        } catch (Exception e) {
+            logger.warn(e.getMessage() + ": " + fieldName + "=" + value, e);
+        }
+    }
+
+    @Override
+    public void writeStringField(XContentString fieldName, String value) throws IOException {
+        writeFieldName(fieldName);
+        string(value);
+    }
+
+    @Override
+    public void writeBooleanField(String fieldName, boolean value) throws IOException {
+        writeFieldNameXml(fieldName);
+        writeBoolean(value);
+    }
+
+    @Override
+    public void writeNullField(String fieldName) throws IOException {
+        writeFieldNameXml(fieldName);
+        nullValue();
+    }
+
+    @Override
+    public void writeNumberField(String fieldName, int value) throws IOException {
+        writeFieldNameXml(fieldName);
+        number(value);
+    }
+
+    @Override
+    public void writeNumberField(XContentString fieldName, int value) throws IOException {
+        writeFieldName(fieldName);
+        number(value);
+    }
+
+    @Override
+    public void writeNumberField(String fieldName, long value) throws IOException {
+        writeFieldNameXml(fieldName);
+        number(value);
+    }
+
+    @Override
+    public void writeNumberField(XContentString fieldName, long value) throws IOException {
+        writeFieldName(fieldName);
+        number(value);
+    }
+
+    @Override
+    public void writeNumberField(String fieldName, double value) throws IOException {
+        writeFieldNameXml(fieldName);
+        writeNumber(value);
+    }
+
+    @Override
+    public void writeNumberField(String fieldName, float value) throws IOException {
+        writeFieldNameXml(fieldName);
+        writeNumber(value);
+    }
+
+    @Override
+    public void writeBinaryField(String fieldName, byte[] data) throws IOException {
+        writeFieldNameXml(fieldName);
+        writeBinary(data);
+    }
+
+    @Override
+    public void writeBinaryField(XContentString fieldName, byte[] value) throws IOException {
+        writeFieldName(fieldName);
+        writeBinary(value);
+    }
+
+    @Override
+    public void writeNumberField(XContentString fieldName, double value) throws IOException {
+        writeFieldName(fieldName);
+        writeNumber(value);
+    }
+
+    @Override
+    public void writeNumberField(XContentString fieldName, float value) throws IOException {
+        writeFieldName(fieldName);
+        writeNumber(value);
+    }
+
+    public void writeArrayFieldStart(String fieldName) throws IOException {
+        writeFieldNameXml(fieldName);
+        startArray();
+    }
+
+    @Override
+    public void writeArrayFieldStart(XContentString fieldName) throws IOException {
+        writeFieldName(fieldName);
+        startArray();
+    }
+
+    public void writeObjectFieldStart(String fieldName) throws IOException {
+        writeFieldNameXml(fieldName);
+        startObject();
+    }
+
+    @Override
+    public void writeObjectFieldStart(XContentString fieldName) throws IOException {
+        writeFieldName(fieldName);
+        startObject();
+    }
+
+    @Override
+    protected void copyXml(JsonParser parser) throws IOException {
+        copyStructure(parser);
+    }
+
+    @Override
+    public XmlXContent xContent() {
+        return XmlXContent.xmlXContent(XmlXContent.UTF8_GENERATOR);
+    }
+
+    @Override
+    public void writeFragment(BytesReference fragment) throws IOException {
+        writer.writeRaw(fragment);
+    }
+
+    @Override
+    public void copyCurrentStructure(XContentParser parser) throws IOException {
+        if (parser.currentToken() == null) {
+            parser.nextToken();
+        }
+        copyCurrentStructure(this, parser);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        while (true) {
+            if (contexts[level] == ARRAY) {
+                endArray();
+            } else if (contexts[level] == OBJECT) {
+                endObject();
+            } else {
+                break;
+            }
+        }
+        writer.close();
+    }
+
+    @Override
+    protected void setNextIsAttribute() {
+        nextIsAttribute = true;
+    }
+
+    @Override
+    protected void writeName(QName qname) throws IOException {
+        verifyFieldName();
+        nextName = qname;
+    }
+
+    @Override
+    protected void writeNamespace(String prefix, String uri) throws IOException {
+        writer.writeNamespace(prefix, uri);
+    }
+
+    /**
+     * A field name that is not mapped to a QName, in the namespace of the previous name.
+     */
+    private void fieldName(String name) throws IOException {
+        verifyFieldName();
+        nextName = new QName(nextName == null ? "" : nextName.getNamespaceURI(), name);
+    }
+
+    private void startObject() throws IOException {
+        verifyValueWrite("start an object");
+        push(OBJECT);
+        if (pretty) {
+            if (nesting > 0) {
+                writer.writeIndentation(nesting);
+            }
+            ++nesting;
+            justHadStartElement = true;
+        }
+        QName name = verifyName();
+        names.add(name);
+        writer.writeStartElement(name);
+    }
+
+    private void endObject() throws IOException {
+        if (contexts[level] != OBJECT) {
+            throw new IOException("Current context not an object but " + typeDesc());
+        }
+        level--;
+        if (pretty) {
+            --nesting;
+            if (justHadStartElement) {
+                justHadStartElement = false;
+            } else {
+                writer.writeIndentation(nesting);
+            }
+        }
+        if (names.isEmpty()) {
+            throw new IOException("Can not write END_ELEMENT without open START_ELEMENT");
+        }
+        nextName = names.remove(names.size() - 1);
+        nextIsAttribute = false;
+        writer.writeEndElement();
+    }
+
+    private void startArray() throws IOException {
+        verifyValueWrite("start an array");
+        push(ARRAY);
+    }
+
+    private void endArray() throws IOException {
+        if (contexts[level] != ARRAY) {
+            throw new IOException("Current context not an ARRAY but " + typeDesc());
+        }
+        level--;
+    }
+
+    private void string(String text) throws IOException {
+        verifyValueWrite("write String value");
+        QName name = verifyName();
+        if (nextIsAttribute) {
+            writer.writeAttribute(name, text);
+        } else {
+            startLeaf(name);
+            writer.writeCharacters(text);
+            endLeaf();
+        }
+    }
+
+    private void string(char[] text, int offset, int len) throws IOException {
+        verifyValueWrite("write String value");
+        QName name = verifyName();
+        if (nextIsAttribute) {
+            writer.writeAttribute(name, text, offset, len);
+        } else {
+            startLeaf(name);
+            writer.writeCharacters(text, offset, len);
+            endLeaf();
+        }
+    }
+
+    private void utf8String(byte[] text, int offset, int len) throws IOException {
+        verifyValueWrite("write String value");
+        QName name = verifyName();
+        if (nextIsAttribute) {
+            writer.writeUtf8Attribute(name, text, offset, len);
+        } else {
+            startLeaf(name);
+            writer.writeUtf8Characters(text, offset, len);
+            endLeaf();
+        }
+    }
+
+    private void number(long v) throws IOException {
+        verifyValueWrite("write number");
+        QName name = verifyName();
+        if (nextIsAttribute) {
+            writer.writeAttribute(name, v);
+        } else {
+            startLeaf(name);
+            writer.writeNumber(v);
+            endLeaf();
+        }
+    }
+
+    private void number(double d) throws IOException {
+        verifyValueWrite("write number");
+        QName name = verifyName();
+        if (nextIsAttribute) {
+            writer.writeAttribute(name, d);
+        } else {
+            startLeaf(name);
+            writer.writeNumber(d);
+            endLeaf();
+        }
+    }
+
+    private void number(float f) throws IOException {
+        verifyValueWrite("write number");
+        QName name = verifyName();
+        if (nextIsAttribute) {
+            writer.writeAttribute(name, f);
+        } else {
+            startLeaf(name);
+            writer.writeNumber(f);
+            endLeaf();
+        }
+    }
+
+    /**
+     * Writes a value that needs no escaping, like a boolean or a big number.
+     */
+    private void ascii(String typeMsg, String value) throws IOException {
+        verifyValueWrite(typeMsg);
+        QName name = verifyName();
+        if (nextIsAttribute) {
+            writer.writeAsciiAttribute(name, value);
+        } else {
+            startLeaf(name);
+            writer.writeAscii(value);
+            endLeaf();
+        }
+    }
+
+    private void binary(byte[] data, int offset, int len) throws IOException {
+        if (data == null) {
+            nullValue();
+            return;
+        }
+        verifyValueWrite("write Binary value");
+        QName name = verifyName();
+        if (nextIsAttribute) {
+            writer.writeBinaryAttribute(name, data, offset, len);
+        } else {
+            startLeaf(name);
+            writer.writeBinary(data, offset, len);
+            endLeaf();
+        }
+    }
+
+    private void nullValue() throws IOException {
+        verifyValueWrite("write null value");
+        QName name = verifyName();
+        if (!nextIsAttribute) {
+            indentLeaf();
+            writer.writeEmptyElement(name);
+            justHadStartElement = false;
+        }
+    }
+
+    private void startLeaf(QName name) throws IOException {
+        indentLeaf();
+        writer.writeStartElement(name);
+    }
+
+    /**
+     * As in the Jackson pretty printer, a leaf resets the start element flag only after it has been written.
+     */
+    private void endLeaf() throws IOException {
+        writer.writeEndElement();
+        justHadStartElement = false;
+    }
+
+    private void indentLeaf() throws IOException {
+        if (pretty) {
+            writer.writeIndentation(nesting);
+        }
+    }
+
+    private QName verifyName() {
+        if (nextName == null) {
+            throw new IllegalStateException("No element/attribute name specified when trying to output element");
+        }
+        return nextName;
+    }
+
+    private void verifyFieldName() throws IOException {
+        // as in Jackson, a name is accepted in any context, but not twice in a row
+        if (gotNames[level]) {
+            throw new IOException("Can not write a field name, expecting a value");
+        }
+        gotNames[level] = true;
+    }
+
+    private void verifyValueWrite(String typeMsg) throws IOException {
+        if (contexts[level] == OBJECT) {
+            if (!gotNames[level]) {
+                throw new IOException("Can not " + typeMsg + ", expecting field name");
+            }
+            gotNames[level] = false;
+        }
+    }
+
+    private void push(int type) {
+        if (++level == contexts.length) {
+            contexts = Arrays.copyOf(contexts, 2 * level);
+            gotNames = Arrays.copyOf(gotNames, 2 * level);
+        }
+        contexts[level] = type;
+        gotNames[level] = false;
+    }
+
+    private String typeDesc() {
+        switch (contexts[level]) {
+            case ARRAY:
+                return "ARRAY";
+            case OBJECT:
+                return "OBJECT";
+            default:
+                return "ROOT";
+        }
+    }
+
+    /**
+     * Copies the tokens of a Jackson parser with their names as they are, like the Jackson generator does.
+     */
+    private void copyStructure(JsonParser parser) throws IOException {
+        JsonToken t = parser.getCurrentToken();
+        if (t == null) {
+            throw new IOException("No current event to copy");
+        }
+        if (t == JsonToken.FIELD_NAME) {
+            fieldName(parser.getCurrentName());
+            t = parser.nextToken();
+        }
+        int depth = 0;
+        while (t != null) {
+            depth += copyEvent(parser, t);
+            if (depth <= 0) {
+                return;
+            }
+            t = parser.nextToken();
+        }
+        throw new IOException("unexpected end of content");
+    }
+
+    /**
+     * Copies an event.
+     *
+     * @return the change of the depth
+     */
+    private int copyEvent(JsonParser parser, JsonToken t) throws IOException {
+        switch (t) {
+            case START_OBJECT:
+                startObject();
+                return 1;
+            case END_OBJECT:
+                endObject();
+                return -1;
+            case START_ARRAY:
+                startArray();
+                return 1;
+            case END_ARRAY:
+                endArray();
+                return -1;
+            case FIELD_NAME:
+                fieldName(parser.getCurrentName());
+                break;
+            case VALUE_STRING:
+                if (parser.hasTextCharacters()) {
+                    string(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                } else {
+                    string(parser.getText());
+                }
+                break;
+            case VALUE_NUMBER_INT:
+                switch (parser.getNumberType()) {
+                    case INT:
+                    case LONG:
+                        number(parser.getLongValue());
+                        break;
+                    default:
+                        ascii("write number", parser.getBigIntegerValue().toString());
+                }
+                break;
+            case VALUE_NUMBER_FLOAT:
+                switch (parser.getNumberType()) {
+                    case BIG_DECIMAL:
+                        ascii("write number", parser.getDecimalValue().toString());
+                        break;
+                    case FLOAT:
+                        writeNumber(parser.getFloatValue());
+                        break;
+                    default:
+                        writeNumber(parser.getDoubleValue());
+                }
+                break;
+            case VALUE_TRUE:
+                writeBoolean(true);
+                break;
+            case VALUE_FALSE:
+                writeBoolean(false);
+                break;
+            case VALUE_NULL:
+                nullValue();
+                break;
+            default:
+                throw new IOException("can not copy " + t);
+        }
+        return 0;
+    }
+}
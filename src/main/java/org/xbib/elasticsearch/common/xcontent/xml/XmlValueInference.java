@@ -0,0 +1,189 @@
+package org.xbib.elasticsearch.common.xcontent.xml;
+
+import org.elasticsearch.common.Strings;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Inference of numbers and booleans from XML text values.
+ *
+ * A value is a number if it follows the JSON number syntax, so values with leading zeros, a plus sign
+ * or surrounding whitespace stay strings. A value is a boolean if it is {@code true} or {@code false}.
+ *
+ * Values under excluded paths are always strings. A path is a dot-separated list of field names
+ * below the root element, for example {@code datafield.subfield}. A {@code *} matches any field name.
+ * The text of an element with attributes has the path of the element.
+ */
+public class XmlValueInference {
+
+    static final int STRING = 0;
+
+    static final int INT = 1;
+
+    static final int LONG = 2;
+
+    static final int DOUBLE = 3;
+
+    static final int TRUE = 4;
+
+    static final int FALSE = 5;
+
+    private static final char[] TRUE_CHARS = "true".toCharArray();
+
+    private static final char[] FALSE_CHARS = "false".toCharArray();
+
+    private final String[][] excludes;
+
+    public XmlValueInference() {
+        this(Arrays.<String>asList());
+    }
+
+    public XmlValueInference(Collection<String> excludes) {
+        this.excludes = new String[excludes.size()][];
+        int i = 0;
+        for (String exclude : excludes) {
+            this.excludes[i++] = Strings.delimitedListToStringArray(exclude, ".");
+        }
+    }
+
+    /**
+     * Checks if a path is excluded from inference.
+     *
+     * @param names the field names of the path, encoded
+     * @param from the index of the first field name
+     * @param to the index after the last field name
+     * @param nameTable the table for decoding the field names
+     * @return true if values under the path are strings
+     */
+    boolean isExcluded(String[] names, int from, int to, XmlNameTable nameTable) {
+        for (String[] exclude : excludes) {
+            if (exclude.length == to - from && matches(exclude, names, from, nameTable)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(String[] exclude, String[] names, int from, XmlNameTable nameTable) {
+        for (int i = 0; i < exclude.length; i++) {
+            if (!"*".equals(exclude[i]) && !exclude[i].equals(nameTable.decode(names[from + i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scans a text value.
+     *
+     * @param buf the characters
+     * @param len the number of characters
+     * @return the kind of the value
+     */
+    static int scan(char[] buf, int len) {
+        if (len == 0) {
+            return STRING;
+        }
+        char c = buf[0];
+        if (c == 't') {
+            return equals(buf, len, TRUE_CHARS) ? TRUE : STRING;
+        }
+        if (c == 'f') {
+            return equals(buf, len, FALSE_CHARS) ? FALSE : STRING;
+        }
+        int i = c == '-' ? 1 : 0;
+        if (i == len) {
+            return STRING;
+        }
+        if (buf[i] == '0') {
+            i++;
+        } else {
+            int start = i;
+            while (i < len && isDigit(buf[i])) {
+                i++;
+            }
+            if (i == start) {
+                return STRING;
+            }
+        }
+        if (i == len) {
+            return integer(buf, len);
+        }
+        if (buf[i] == '.') {
+            int start = ++i;
+            while (i < len && isDigit(buf[i])) {
+                i++;
+            }
+            if (i == start) {
+                return STRING;
+            }
+        }
+        if (i < len && (buf[i] == 'e' || buf[i] == 'E')) {
+            i++;
+            if (i < len && (buf[i] == '+' || buf[i] == '-')) {
+                i++;
+            }
+            int start = i;
+            while (i < len && isDigit(buf[i])) {
+                i++;
+            }
+            if (i == start) {
+                return STRING;
+            }
+        }
+        return i == len ? DOUBLE : STRING;
+    }
+
+    /**
+     * Returns the value of an integer, which has been scanned before.
+     *
+     * @param buf the characters
+     * @param off the offset of the first character
+     * @param len the number of characters
+     * @return the value
+     */
+    static long longValue(char[] buf, int off, int len) {
+        boolean negative = buf[off] == '-';
+        long value = 0;
+        // accumulate negatively, the range of negative values is larger
+        for (int i = negative ? off + 1 : off; i < off + len; i++) {
+            value = value * 10 - (buf[i] - '0');
+        }
+        return negative ? value : -value;
+    }
+
+    private static int integer(char[] buf, int len) {
+        boolean negative = buf[0] == '-';
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long value = 0;
+        for (int i = negative ? 1 : 0; i < len; i++) {
+            int digit = buf[i] - '0';
+            if (value < (limit + digit) / 10) {
+                // too large for a long
+                return STRING;
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative) {
+            value = -value;
+        }
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE ? INT : LONG;
+    }
+
+    private static boolean equals(char[] buf, int len, char[] chars) {
+        if (len != chars.length) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (buf[i] != chars[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -1,9 +1,12 @@
 package org.xbib.elasticsearch.common.xcontent.xml;
 
+import com.ctc.wstx.api.WstxInputProperties;
 import com.ctc.wstx.stax.WstxInputFactory;
 import com.ctc.wstx.stax.WstxOutputFactory;
 import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.dataformat.xml.XmlFactory;
+import org.codehaus.stax2.XMLStreamReader2;
+import org.codehaus.stax2.io.Stax2ByteArraySource;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.io.FastStringReader;
 import org.elasticsearch.common.xcontent.XContent;
@@ -14,13 +17,15 @@ import org.elasticsearch.common.xcontent.XContentParser;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Reader;
+import java.nio.file.Path;
 
 /**
- * A XML based content implementation using Jackson XML dataformat
+ * A XML based content implementation using Jackson XML dataformat for generating, and Woodstox for parsing
  *
  */
 public class XmlXContent implements XContent {
@@ -55,31 +60,65 @@ public class XmlXContent implements XContent {
         inputFactory.setProperty("javax.xml.stream.isCoalescing", Boolean.TRUE);
         inputFactory.setProperty("javax.xml.stream.isReplacingEntityReferences", Boolean.FALSE);
         inputFactory.setProperty("javax.xml.stream.isSupportingExternalEntities", Boolean.FALSE);
+        // a stream may have more than one document
+        inputFactory.setProperty(WstxInputProperties.P_INPUT_PARSING_MODE, WstxInputProperties.PARSING_MODE_DOCUMENTS);
 
         XMLOutputFactory outputFactory = new WstxOutputFactory(); // do not use  XMLOutputFactory.newInstance()
         outputFactory.setProperty("javax.xml.stream.isRepairingNamespaces", Boolean.TRUE);
 
         xmlFactory = new XmlFactory(inputFactory, outputFactory);
 
-        xmlXContent = new XmlXContent();
+        nameTable = new XmlNameTable();
+
+        xmlXContent = new XmlXContent(false);
+
+        utf8XmlXContent = new XmlXContent(true);
     }
 
+    /**
+     * The name of the generator that writes XML with Jackson and Woodstox.
+     */
+    public final static String JACKSON_GENERATOR = "jackson";
+
+    /**
+     * The name of the generator that writes UTF-8 bytes directly.
+     */
+    public final static String UTF8_GENERATOR = "utf8";
+
     public static XmlXContentBuilder contentBuilder() throws IOException {
         return XmlXContentBuilder.builder(xmlXContent);
     }
 
     public static XmlXContentBuilder contentBuilder(XmlXParams params) throws IOException {
         XmlXContentBuilder builder = XmlXContentBuilder.builder(xmlXContent);
-        ((XmlXContentGenerator) builder.generator()).setParams(params);
+        ((AbstractXmlXContentGenerator) builder.generator()).setParams(params);
+        return builder;
+    }
+
+    public static XmlXContentBuilder contentBuilder(XmlXParams params, String generator) throws IOException {
+        XmlXContentBuilder builder = XmlXContentBuilder.builder(xmlXContent(generator));
+        ((AbstractXmlXContentGenerator) builder.generator()).setParams(params);
+        return builder;
+    }
+
+    public static XmlXContentBuilder contentBuilder(XmlXParams params, OutputStream os) throws IOException {
+        XmlXContentBuilder builder = new XmlXContentBuilder(xmlXContent, os);
+        ((AbstractXmlXContentGenerator) builder.generator()).setParams(params);
         return builder;
     }
 
     private final static XmlFactory xmlFactory;
 
+    private final static XmlNameTable nameTable;
+
     private final static XmlXContent xmlXContent;
 
-    private XmlXContent() {
+    private final static XmlXContent utf8XmlXContent;
+
+    private final boolean utf8;
 
+    private XmlXContent(boolean utf8) {
+        this.utf8 = utf8;
     }
 
     @Override
@@ -92,44 +131,88 @@ public class XmlXContent implements XContent {
         return xmlXContent;
     }
 
+    /**
+     * The XML content with the given generator.
+     *
+     * @param generator the name of the generator, "jackson" or "utf8"
+     * @return the XML content
+     */
+    public static XmlXContent xmlXContent(String generator) {
+        if (generator == null || JACKSON_GENERATOR.equals(generator)) {
+            return xmlXContent;
+        }
+        if (UTF8_GENERATOR.equals(generator)) {
+            return utf8XmlXContent;
+        }
+        throw new IllegalArgumentException("unknown XML generator: " + generator);
+    }
+
     protected static XmlFactory xmlFactory() {
         return xmlFactory;
     }
 
+    protected static XmlNameTable nameTable() {
+        return nameTable;
+    }
+
+    /**
+     * The separator of documents in a stream, a line feed. XML documents in a stream do not need a separator,
+     * but splitting a stream into lines works only if each document is on a line of its own,
+     * that is, without pretty printing and with line feeds in text written as character references.
+     *
+     * @return the line feed
+     */
     @Override
     public byte streamSeparator() {
-        throw new UnsupportedOperationException("xml does not support stream parsing...");
+        return '\n';
     }
 
     @Override
     public XContentGenerator createGenerator(OutputStream os) throws IOException {
-        return new XmlXContentGenerator(xmlFactory.createGenerator(os, JsonEncoding.UTF8));
+        if (utf8) {
+            return new XmlUtf8XContentGenerator(os);
+        }
+        return new XmlXContentGenerator(xmlFactory.createGenerator(os, JsonEncoding.UTF8), os);
     }
 
+    /**
+     * Creates a generator that writes only the fields matching the filters, see {@link XmlFilteringXContentGenerator}.
+     */
     @Override
     public XContentGenerator createGenerator(OutputStream os, String[] filters) throws IOException {
-        // ignore filters (for now)
-        return new XmlXContentGenerator(xmlFactory.createGenerator(os, JsonEncoding.UTF8));
+        if (filters == null || filters.length == 0) {
+            return createGenerator(os);
+        }
+        return new XmlFilteringXContentGenerator((AbstractXmlXContentGenerator) createGenerator(os), filters);
     }
 
     @Override
     public XContentParser createParser(String content) throws IOException {
-        return new XmlXContentParser(xmlFactory.createParser(new FastStringReader(content)));
+        return createParser(new FastStringReader(content));
     }
 
     @Override
     public XContentParser createParser(InputStream is) throws IOException {
-        return new XmlXContentParser(xmlFactory.createParser(is));
+        try {
+            return new XmlXContentParser((XMLStreamReader2) xmlFactory.getXMLInputFactory().createXMLStreamReader(is));
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
     }
 
     @Override
     public XContentParser createParser(byte[] data) throws IOException {
-        return new XmlXContentParser(xmlFactory.createParser(data));
+        return createParser(data, 0, data.length);
     }
 
     @Override
     public XContentParser createParser(byte[] data, int offset, int length) throws IOException {
-        return new XmlXContentParser(xmlFactory.createParser(data, offset, length));
+        try {
+            return new XmlXContentParser((XMLStreamReader2) xmlFactory.getXMLInputFactory()
+                    .createXMLStreamReader(new Stax2ByteArraySource(data, offset, length)));
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
     }
 
     @Override
@@ -140,8 +223,30 @@ public class XmlXContent implements XContent {
         return createParser(bytes.streamInput());
     }
 
+    /**
+     * Creates a parser for an XML file. The file is read from memory mapped windows, see {@link MappedInputStream},
+     * so it can be larger than the heap.
+     *
+     * @param path the path of the file
+     * @return the parser, which closes the file when it is closed
+     * @throws IOException if the file can not be opened or has no root element
+     */
+    public XContentParser createParser(Path path) throws IOException {
+        MappedInputStream in = MappedInputStream.open(path);
+        try {
+            return createParser(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
     @Override
     public XContentParser createParser(Reader reader) throws IOException {
-        return new XmlXContentParser(xmlFactory.createParser(reader));
+        try {
+            return new XmlXContentParser((XMLStreamReader2) xmlFactory.getXMLInputFactory().createXMLStreamReader(reader));
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
     }
 }
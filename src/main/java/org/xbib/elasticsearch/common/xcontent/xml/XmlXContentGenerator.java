@@ -2,59 +2,56 @@ package org.xbib.elasticsearch.common.xcontent.xml;
 
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.dataformat.xml.ser.ToXmlGenerator;
+import com.google.common.base.Charsets;
+import org.codehaus.stax2.XMLStreamWriter2;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
-import org.elasticsearch.common.xcontent.XContentGenerator;
-import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.common.xcontent.XContentString;
 
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
 import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  *
  * Content generator for XML format
  *
  */
-public class XmlXContentGenerator implements XContentGenerator {
+public class XmlXContentGenerator extends AbstractXmlXContentGenerator {
 
     private final static ESLogger logger = ESLoggerFactory.getLogger(XmlXContentGenerator.class.getName());
 
     protected final ToXmlGenerator generator;
 
-    private XmlXParams params;
+    private final OutputStream out;
 
-    private boolean started;
+    private CharsetDecoder decoder;
 
-    private boolean context;
-
-    private String prefix;
+    private char[] chars;
 
     public XmlXContentGenerator(ToXmlGenerator generator) {
-        this.generator = generator;
-        this.params = new XmlXParams();
-        this.started = false;
-        this.context = false;
-        this.prefix = null;
-        generator.configure(ToXmlGenerator.Feature.WRITE_XML_DECLARATION, false);
-    }
-
-    public XmlXContentGenerator setParams(XmlXParams params) {
-        this.params = params;
-        return this;
-    }
-
-    public XmlNamespaceContext getNamespaceContext() {
-        return params.getNamespaceContext();
+        this(generator, null);
     }
 
-    @Override
-    public XContentType contentType() {
-        //return XmlXContentType.XML;
-        return null;
+    public XmlXContentGenerator(ToXmlGenerator generator, OutputStream out) {
+        this.generator = generator;
+        this.out = out;
+        generator.configure(ToXmlGenerator.Feature.WRITE_XML_DECLARATION, false);
     }
 
     @Override
@@ -62,11 +59,6 @@ public class XmlXContentGenerator implements XContentGenerator {
         generator.useDefaultPrettyPrinter();
     }
 
-    @Override
-    public void usePrintLineFeedAtEnd() {
-        // nothing here
-    }
-
     @Override
     public void writeStartArray() throws IOException {
         generator.writeStartArray();
@@ -80,16 +72,27 @@ public class XmlXContentGenerator implements XContentGenerator {
     @Override
     public void writeStartObject() throws IOException {
         try {
+            if (!started && fragment != null) {
+                String defaultNamespaceURI = params.getQName().getNamespaceURI();
+                generator.getStaxWriter().setNamespaceContext(new RootNamespaceContext(defaultNamespaceURI, rootNamespaces));
+                generator.getStaxWriter().setDefaultNamespace(defaultNamespaceURI);
+                generator.setNextName(toQName(fragment));
+                generator.writeStartObject();
+                suggestPrefixes();
+                started = true;
+                return;
+            }
             if (!started) {
                 generator.getStaxWriter().setDefaultNamespace(params.getQName().getNamespaceURI());
                 generator.startWrappedValue(null, params.getQName());
             }
             generator.writeStartObject();
             if (!started ) {
-                if (getNamespaceContext() != null &&  getNamespaceContext().getNamespaces() != null) {
-                    for (String prefix : getNamespaceContext().getNamespaces().keySet()) {
-                        generator.getStaxWriter().writeNamespace(prefix, getNamespaceContext().getNamespaceURI(prefix));
-                    }
+                rootNamespaces = new TreeMap<>();
+                if (params.isDeclareAllNamespaces()) {
+                    declareNamespaces();
+                } else {
+                    suggestPrefixes();
                 }
                 started = true;
             }
@@ -104,23 +107,12 @@ public class XmlXContentGenerator implements XContentGenerator {
         context = false;
     }
 
-    @Override
-    public void writeFieldName(String name) throws IOException {
-        writeFieldNameXml(name);
-    }
-
-    @Override
-    public void writeFieldName(XContentString name) throws IOException {
-        writeFieldNameXml(name.getValue());
-    }
-
     @Override
     public void writeString(String text) throws IOException {
         try {
             generator.writeString(text);
             if (context && prefix != null) {
-                params.getNamespaceContext().addNamespace(prefix, text);
-                generator.getStaxWriter().writeNamespace(prefix, text);
+                declareNamespace(prefix, text);
                 prefix = null;
             }
         } catch (Exception e) {
@@ -130,32 +122,36 @@ public class XmlXContentGenerator implements XContentGenerator {
 
     @Override
     public void writeString(char[] text, int offset, int len) throws IOException {
-        String s = new String(text, offset, len);
         try {
-            generator.writeString(s);
+            generator.writeString(text, offset, len);
             if (context && prefix != null) {
-                params.getNamespaceContext().addNamespace(prefix, s);
-                generator.getStaxWriter().writeNamespace(prefix, s);
+                declareNamespace(prefix, new String(text, offset, len));
                 prefix = null;
             }
         } catch (Exception e) {
-            logger.warn(e.getMessage() + ": " + s, e);
+            logger.warn(e.getMessage() + ": " + new String(text, offset, len), e);
         }
     }
 
+    /**
+     * The XML generator of Jackson does not write UTF-8 strings, so the bytes are decoded into a reused
+     * char buffer, which is passed to the stream writer.
+     */
     @Override
     public void writeUTF8String(byte[] text, int offset, int length) throws IOException {
-        String s = new String(text, offset, length);
-        try {
-            generator.writeUTF8String(text, offset, length);
-            if (context && prefix != null) {
-                params.getNamespaceContext().addNamespace(prefix, s);
-                generator.getStaxWriter().writeNamespace(prefix, s);
-                prefix = null;
-            }
-        } catch (Exception e) {
-            logger.warn(e.getMessage() + ": " + s, e);
+        if (decoder == null) {
+            decoder = Charsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
         }
+        if (chars == null || chars.length < length) {
+            chars = new char[Math.max(length, 64)];
+        }
+        CharBuffer charBuffer = CharBuffer.wrap(chars);
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(text, offset, length), charBuffer, true);
+        decoder.flush(charBuffer);
+        writeString(chars, 0, charBuffer.position());
     }
 
     @Override
@@ -213,11 +209,12 @@ public class XmlXContentGenerator implements XContentGenerator {
     @Override
     public void writeStringField(String fieldName, String value) throws IOException {
         try {
-            generator.writeStringField(fieldName, value);
+            writeFieldNameXml(fieldName);
+            generator.writeString(value);
             if (context && value != null) {
-                params.getNamespaceContext().addNamespace(fieldName, value);
-                generator.getStaxWriter().writeNamespace(fieldName, value);
+                declareNamespace(fieldName, value);
             }
+            prefix = null;
         } catch (Exception e) {
             logger.warn(e.getMessage() + ": " + fieldName + "=" + value, e);
         }
@@ -231,17 +228,20 @@ public class XmlXContentGenerator implements XContentGenerator {
 
     @Override
     public void writeBooleanField(String fieldName, boolean value) throws IOException {
-        generator.writeBooleanField(fieldName, value);
+        writeFieldNameXml(fieldName);
+        generator.writeBoolean(value);
     }
 
     @Override
     public void writeNullField(String fieldName) throws IOException {
-        generator.writeNullField(fieldName);
+        writeFieldNameXml(fieldName);
+        generator.writeNull();
     }
 
     @Override
     public void writeNumberField(String fieldName, int value) throws IOException {
-        generator.writeNumberField(fieldName, value);
+        writeFieldNameXml(fieldName);
+        generator.writeNumber(value);
     }
 
     @Override
@@ -252,7 +252,8 @@ public class XmlXContentGenerator implements XContentGenerator {
 
     @Override
     public void writeNumberField(String fieldName, long value) throws IOException {
-        generator.writeNumberField(fieldName, value);
+        writeFieldNameXml(fieldName);
+        generator.writeNumber(value);
     }
 
     @Override
@@ -263,17 +264,20 @@ public class XmlXContentGenerator implements XContentGenerator {
 
     @Override
     public void writeNumberField(String fieldName, double value) throws IOException {
-        generator.writeNumberField(fieldName, value);
+        writeFieldNameXml(fieldName);
+        generator.writeNumber(value);
     }
 
     @Override
     public void writeNumberField(String fieldName, float value) throws IOException {
-        generator.writeNumberField(fieldName, value);
+        writeFieldNameXml(fieldName);
+        generator.writeNumber(value);
     }
 
     @Override
     public void writeBinaryField(String fieldName, byte[] data) throws IOException {
-        generator.writeBinaryField(fieldName, data);
+        writeFieldNameXml(fieldName);
+        generator.writeBinary(data);
     }
 
     @Override
@@ -295,7 +299,8 @@ public class XmlXContentGenerator implements XContentGenerator {
     }
 
     public void writeArrayFieldStart(String fieldName) throws IOException {
-        generator.writeArrayFieldStart(fieldName);
+        writeFieldNameXml(fieldName);
+        generator.writeStartArray();
     }
 
     @Override
@@ -305,7 +310,8 @@ public class XmlXContentGenerator implements XContentGenerator {
     }
 
     public void writeObjectFieldStart(String fieldName) throws IOException {
-        generator.writeObjectFieldStart(fieldName);
+        writeFieldNameXml(fieldName);
+        generator.writeStartObject();
     }
 
     @Override
@@ -315,26 +321,28 @@ public class XmlXContentGenerator implements XContentGenerator {
     }
 
     @Override
-    public void writeRawField(String fieldName, InputStream content) throws IOException {
-        writeFieldNameXml(fieldName);
-        try (JsonParser parser = XmlXContent.xmlFactory().createParser(content)) {
-            parser.nextToken();
-            generator.copyCurrentStructure(parser);
-        }
+    protected void copyXml(JsonParser parser) throws IOException {
+        generator.copyCurrentStructure(parser);
     }
 
     @Override
-    public void writeRawField(String fieldName, BytesReference content) throws IOException {
-        writeFieldNameXml(fieldName);
-        try (JsonParser parser = XmlXContent.xmlFactory().createParser(content.toBytes())) {
-            parser.nextToken();
-            generator.copyCurrentStructure(parser);
-        }
+    public XmlXContent xContent() {
+        return XmlXContent.xmlXContent();
     }
 
     @Override
-    public void writeRawValue(BytesReference content) throws IOException {
-        generator.writeRawValue(content.toUtf8());
+    public void writeFragment(BytesReference fragment) throws IOException {
+        if (out == null) {
+            throw new IOException("no output stream for writing fragments");
+        }
+        try {
+            // writing raw closes a pending start element
+            ((XMLStreamWriter2) generator.getStaxWriter()).writeRaw("");
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        generator.flush();
+        fragment.writeTo(out);
     }
 
     @Override
@@ -342,138 +350,99 @@ public class XmlXContentGenerator implements XContentGenerator {
         if (parser.currentToken() == null) {
             parser.nextToken();
         }
-        if (parser instanceof XmlXContentParser) {
-            generator.copyCurrentStructure(((XmlXContentParser) parser).parser);
-        } else {
-            copyCurrentStructure(this, parser);
-        }
+        copyCurrentStructure(this, parser);
     }
 
-    public static void copyCurrentStructure(XContentGenerator generator, XContentParser parser) throws IOException {
-        XContentParser.Token t = parser.currentToken();
-
-        // Let's handle field-name separately first
-        if (t == XContentParser.Token.FIELD_NAME) {
-            generator.writeFieldName(parser.currentName());
-            t = parser.nextToken();
-            // fall-through to copy the associated value
-        }
+    @Override
+    public void flush() throws IOException {
+        generator.flush();
+    }
 
-        switch (t) {
-            case START_ARRAY:
-                generator.writeStartArray();
-                while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
-                    copyCurrentStructure(generator, parser);
-                }
-                generator.writeEndArray();
-                break;
-            case START_OBJECT:
-                generator.writeStartObject();
-                while (parser.nextToken() != XContentParser.Token.END_OBJECT) {
-                    copyCurrentStructure(generator, parser);
-                }
-                generator.writeEndObject();
-                break;
-            default: // others are simple:
-                copyCurrentEvent(generator, parser);
-        }
+    @Override
+    public void close() throws IOException {
+        generator.close();
     }
 
-    public static void copyCurrentEvent(XContentGenerator generator, XContentParser parser) throws IOException {
-        switch (parser.currentToken()) {
-            case START_OBJECT:
-                generator.writeStartObject();
-                break;
-            case END_OBJECT:
-                generator.writeEndObject();
-                break;
-            case START_ARRAY:
-                generator.writeStartArray();
-                break;
-            case END_ARRAY:
-                generator.writeEndArray();
-                break;
-            case FIELD_NAME:
-                generator.writeFieldName(parser.currentName());
-                break;
-            case VALUE_STRING:
-                if (parser.hasTextCharacters()) {
-                    generator.writeString(parser.textCharacters(), parser.textOffset(), parser.textLength());
-                } else {
-                    generator.writeString(parser.text());
-                }
-                break;
-            case VALUE_NUMBER:
-                switch (parser.numberType()) {
-                    case INT:
-                        generator.writeNumber(parser.intValue());
-                        break;
-                    case LONG:
-                        generator.writeNumber(parser.longValue());
-                        break;
-                    case FLOAT:
-                        generator.writeNumber(parser.floatValue());
-                        break;
-                    case DOUBLE:
-                        generator.writeNumber(parser.doubleValue());
-                        break;
-                }
-                break;
-            case VALUE_BOOLEAN:
-                generator.writeBoolean(parser.booleanValue());
-                break;
-            case VALUE_NULL:
-                generator.writeNull();
-                break;
-            case VALUE_EMBEDDED_OBJECT:
-                generator.writeBinary(parser.binaryValue());
-        }
+    @Override
+    protected void setNextIsAttribute() {
+        // setting to attribute is simple but tricky, it allows to declare namespaces in StaX
+        generator.setNextIsAttribute(true);
     }
 
     @Override
-    public void flush() throws IOException {
-        generator.flush();
+    protected void writeName(QName qname) throws IOException {
+        generator.setNextName(qname);
+        generator.writeFieldName(qname.getLocalPart());
     }
 
     @Override
-    public void close() throws IOException {
-        generator.close();
+    protected void writeNamespace(String prefix, String uri) throws IOException {
+        try {
+            generator.getStaxWriter().writeNamespace(prefix, uri);
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
     }
 
-    private void writeFieldNameXml(String name) throws IOException {
-        if (!context) {
-            this.context = "@context".equals(name);
-            this.prefix = null;
+    private void declareNamespaces() throws XMLStreamException {
+        if (getNamespaceContext() != null && getNamespaceContext().getNamespaces() != null) {
+            for (Map.Entry<String, String> entry : getNamespaceContext().getNamespaces().entrySet()) {
+                generator.getStaxWriter().writeNamespace(entry.getKey(), entry.getValue());
+                rootNamespaces.put(entry.getKey(), entry.getValue());
+            }
         }
-        if (name.startsWith("@")) {
-            // setting to attribute is simple but tricky, it allows to declare namespaces in StaX
-            generator.setNextIsAttribute(true);
-        } else if (context) {
-            prefix = name;
+    }
+
+    /**
+     * The prefixes of the namespace context are not declared on the root element. They are suggested to the
+     * repairing stream writer, which declares a prefix on the first element or attribute in its namespace.
+     */
+    private void suggestPrefixes() throws XMLStreamException {
+        if (getNamespaceContext() != null && getNamespaceContext().getNamespaces() != null) {
+            for (Map.Entry<String, String> entry : getNamespaceContext().getNamespaces().entrySet()) {
+                generator.getStaxWriter().setPrefix(entry.getKey(), entry.getValue());
+            }
         }
-        QName qname = toQName(name);
-        generator.setNextName(qname);
-        generator.writeFieldName(qname.getLocalPart());
     }
 
-    private QName toQName(String name) throws IOException {
-        QName root = params.getQName();
-        XmlNamespaceContext context = params.getNamespaceContext();
-        String nsPrefix = root.getPrefix();
-        String nsURI = root.getNamespaceURI();
-        if (name.startsWith("_") || name.startsWith("@")) {
-            name = name.substring(1);
+    /**
+     * The namespace context of a fragment, with the default namespace and the namespaces of the root element.
+     * Prefixes are preferred to the default namespace, because attributes need them.
+     */
+    private static class RootNamespaceContext implements NamespaceContext {
+
+        private final String defaultNamespaceURI;
+
+        private final Map<String, String> namespaces;
+
+        RootNamespaceContext(String defaultNamespaceURI, Map<String, String> namespaces) {
+            this.defaultNamespaceURI = defaultNamespaceURI;
+            this.namespaces = namespaces != null ? namespaces : Collections.<String, String>emptyMap();
+        }
+
+        @Override
+        public String getNamespaceURI(String prefix) {
+            return XMLConstants.DEFAULT_NS_PREFIX.equals(prefix) ? defaultNamespaceURI : namespaces.get(prefix);
+        }
+
+        @Override
+        public String getPrefix(String namespaceURI) {
+            Iterator<String> it = getPrefixes(namespaceURI);
+            return it.hasNext() ? it.next() : null;
         }
-        name = ISO9075.encode(name);
-        int pos = name.indexOf(':');
-        if (pos > 0) {
-            nsPrefix = name.substring(0, pos);
-            nsURI = context != null ? context.getNamespaceURI(nsPrefix) : XmlXParams.DEFAULT_ROOT.getNamespaceURI();
-            if (nsURI == null) {
-                throw new IOException("unknown namespace prefix: " + nsPrefix);
+
+        @Override
+        public Iterator<String> getPrefixes(String namespaceURI) {
+            List<String> list = new ArrayList<>();
+            for (Map.Entry<String, String> entry : namespaces.entrySet()) {
+                if (entry.getValue().equals(namespaceURI)) {
+                    list.add(entry.getKey());
+                }
+            }
+            if (namespaceURI.equals(defaultNamespaceURI)) {
+                list.add(XMLConstants.DEFAULT_NS_PREFIX);
             }
-            name = name.substring(pos + 1);
+            return list.iterator();
         }
-        return new QName(nsURI, name, nsPrefix);
     }
 }
@@ -1,22 +1,227 @@
 package org.xbib.elasticsearch.common.xcontent.xml;
 
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.Base64Variants;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
+import org.codehaus.stax2.XMLStreamLocation2;
+import org.codehaus.stax2.XMLStreamReader2;
+import org.elasticsearch.common.recycler.Recycler;
+import org.elasticsearch.common.recycler.Recyclers;
 import org.elasticsearch.common.xcontent.XContentLocation;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.common.xcontent.support.AbstractXContentParser;
 
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
 import java.nio.CharBuffer;
-
+import java.util.Arrays;
+
+/**
+ * A parser for XML content, reading the events of a Woodstox stream reader.
+ *
+ * The root element is an object. Each child element is a field, which is a string if the element
+ * has only text, null if the element is empty, or an object if the element has attributes or child
+ * elements. Attributes are string fields. The text of an element with attributes is a field with
+ * an empty name. Other text of elements with child elements is skipped, as are comments
+ * and processing instructions. Namespaces are not reported, names are local names.
+ *
+ * Consecutive sibling elements with the same name are an array. To find out if an element is repeated,
+ * the tokens of its value are read ahead into a buffer. If the value is larger than the lookahead size,
+ * the element is not checked for repetition, and a repeated element is a repeated field.
+ *
+ * A stream of documents is parsed one document after another, each root element is an object.
+ * The documents follow each other without a separator, or with whitespace, such as the line feed
+ * of {@link XmlXContent#streamSeparator()}, and may each have an XML declaration.
+ *
+ * Text is collected into a buffer of the parser, which is handed out by {@link #textCharacters()},
+ * so no strings are created unless asked for. The buffers of the parser are recycled when it is closed.
+ *
+ * All values are strings, unless a {@link XmlValueInference} is set, which reports numbers
+ * and booleans.
+ */
 public class XmlXContentParser extends AbstractXContentParser {
 
-    final JsonParser parser;
+    /**
+     * The default lookahead size, in characters and tokens.
+     */
+    public static final int DEFAULT_ARRAY_LOOKAHEAD = 65536;
+
+    private static final int START_ELEMENT = 1;
+
+    private static final int END_ELEMENT = 2;
+
+    private static final int ATTRIBUTE_NAME = 3;
+
+    private static final int ATTRIBUTE_VALUE = 4;
+
+    private static final int TEXT = 5;
+
+    private static final int END = 6;
+
+    // arrays larger than this are not recycled
+    private static final int MAX_RECYCLED_SIZE = 8192;
+
+    private static final Recycler<Buffers> recycler = Recyclers.concurrentDeque(new Recycler.C<Buffers>() {
+        @Override
+        public Buffers newInstance(int sizing) {
+            return new Buffers();
+        }
+
+        @Override
+        public void recycle(Buffers value) {
+            value.clear();
+        }
+
+        @Override
+        public void destroy(Buffers value) {
+            // nothing to release
+        }
+    }, 64);
+
+    private final XMLStreamReader2 reader;
+
+    private final Recycler.V<Buffers> buffers;
+
+    private final XmlNameTable nameTable;
+
+    private int state;
+
+    private int attributeCount;
+
+    private int attributeIndex;
+
+    private String localName;
+
+    private char[] text;
+
+    private int textLength;
+
+    private int textKind;
+
+    private Token pendingToken;
+
+    private boolean mayBeLeaf;
+
+    private String[] path;
+
+    private int level;
+
+    private XmlValueInference inference;
+
+    private int arrayLookahead;
+
+    // tokens read ahead
+
+    private Token[] queuedTokens;
+
+    private String[] queuedNames;
+
+    private boolean[] queuedElements;
+
+    private int[] queuedKinds;
+
+    private int[] queuedOffsets;
+
+    private int[] queuedLengths;
+
+    private char[] queuedText;
+
+    private int queuedTextLength;
+
+    private int head;
+
+    private int count;
+
+    // the current token
+
+    private Token token;
 
-    public XmlXContentParser(JsonParser parser) {
-        this.parser = parser;
+    private String name;
+
+    private boolean element;
+
+    private int kind;
+
+    private char[] chars;
+
+    private int offset;
+
+    private int length;
+
+    private boolean attribute;
+
+    private boolean queued;
+
+    private boolean startArray;
+
+    private String[] names;
+
+    private boolean[] arrays;
+
+    private int depth;
+
+    private boolean closed;
+
+    public XmlXContentParser(XMLStreamReader2 reader) throws IOException {
+        this(reader, XmlXContent.nameTable());
+    }
+
+    public XmlXContentParser(XMLStreamReader2 reader, XmlNameTable nameTable) throws IOException {
+        this.reader = reader;
+        this.nameTable = nameTable;
+        this.arrayLookahead = DEFAULT_ARRAY_LOOKAHEAD;
+        try {
+            while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+                if (!reader.hasNext()) {
+                    throw new IOException("no root element in XML content");
+                }
+                reader.next();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        this.buffers = recycler.obtain();
+        Buffers b = buffers.v();
+        this.text = b.text;
+        this.path = b.path;
+        this.names = b.names;
+        this.arrays = b.arrays;
+        this.queuedTokens = b.queuedTokens;
+        this.queuedNames = b.queuedNames;
+        this.queuedElements = b.queuedElements;
+        this.queuedKinds = b.queuedKinds;
+        this.queuedOffsets = b.queuedOffsets;
+        this.queuedLengths = b.queuedLengths;
+        this.queuedText = b.queuedText;
+        this.state = START_ELEMENT;
+        this.attributeCount = reader.getAttributeCount();
+        this.localName = reader.getLocalName();
+        this.pendingToken = Token.START_OBJECT;
+    }
+
+    /**
+     * Sets the inference of numbers and booleans from text values.
+     *
+     * @param inference the inference, or null if all values are strings
+     * @return this parser
+     */
+    public XmlXContentParser setValueInference(XmlValueInference inference) {
+        this.inference = inference;
+        return this;
+    }
+
+    /**
+     * Sets the maximum size of the tokens read ahead for finding repeated elements. The size
+     * of a token is one plus the length of its text.
+     *
+     * @param arrayLookahead the size, or 0 if repeated elements are repeated fields
+     * @return this parser
+     */
+    public XmlXContentParser setArrayLookahead(int arrayLookahead) {
+        this.arrayLookahead = arrayLookahead;
+        return this;
     }
 
     @Override
@@ -26,197 +231,732 @@ public class XmlXContentParser extends AbstractXContentParser {
     }
 
     @Override
-    public XContentParser.Token nextToken() throws IOException {
-        return convertToken(parser.nextToken());
+    public Token nextToken() throws IOException {
+        if (startArray) {
+            startArray = false;
+            push(true);
+            return token = Token.START_ARRAY;
+        }
+        if (arrays[depth] && token != Token.START_ARRAY) {
+            // after a value in an array, the element is repeated or the array ends
+            Token t = take();
+            if (t == Token.FIELD_NAME && element && name.equals(names[depth - 1])) {
+                return emit(take());
+            }
+            unread();
+            depth--;
+            return token = Token.END_ARRAY;
+        }
+        Token t = take();
+        if (t == Token.FIELD_NAME && element && arrayLookahead > 0 && isRepeated()) {
+            startArray = true;
+        }
+        return emit(t);
     }
 
     @Override
     public void skipChildren() throws IOException {
-        parser.skipChildren();
+        if (token != Token.START_OBJECT && token != Token.START_ARRAY) {
+            return;
+        }
+        int open = 1;
+        while (open > 0) {
+            Token t = nextToken();
+            if (t == null) {
+                return;
+            }
+            if (t == Token.START_OBJECT || t == Token.START_ARRAY) {
+                open++;
+            } else if (t == Token.END_OBJECT || t == Token.END_ARRAY) {
+                open--;
+            }
+        }
     }
 
     @Override
-    public XContentParser.Token currentToken() {
-        return convertToken(parser.getCurrentToken());
+    public Token currentToken() {
+        return token;
     }
 
     @Override
-    public XContentParser.NumberType numberType() throws IOException {
-        return convertNumberType(parser.getNumberType());
+    public NumberType numberType() throws IOException {
+        if (token == Token.VALUE_NUMBER) {
+            switch (kind) {
+                case XmlValueInference.INT:
+                    return NumberType.INT;
+                case XmlValueInference.LONG:
+                    return NumberType.LONG;
+                default:
+                    return NumberType.DOUBLE;
+            }
+        }
+        throw new IllegalStateException("current token [" + token + "] is not a number");
     }
 
     @Override
     public String currentName() throws IOException {
-        return parser.getCurrentName();
+        String currentName;
+        if (token == Token.FIELD_NAME) {
+            currentName = name;
+        } else if (token == Token.START_OBJECT || token == Token.START_ARRAY) {
+            currentName = depth > 0 ? names[depth - 1] : null;
+        } else {
+            currentName = names[depth];
+        }
+        // names are ISO 9075 encoded by the XML generator
+        return nameTable.decode(currentName);
     }
 
     @Override
     protected boolean doBooleanValue() throws IOException {
-        return parser.getBooleanValue();
+        if (token == Token.VALUE_BOOLEAN) {
+            return kind == XmlValueInference.TRUE;
+        }
+        throw new IllegalStateException("current token [" + token + "] is not a boolean");
     }
 
     @Override
     public String text() throws IOException {
-        return parser.getText();
+        if (token == null) {
+            return null;
+        }
+        switch (token) {
+            case FIELD_NAME:
+                // the same decoded name as currentName()
+                return currentName();
+            case VALUE_STRING:
+            case VALUE_NUMBER:
+            case VALUE_BOOLEAN:
+                return attribute ? reader.getAttributeValue(attributeIndex) : new String(chars, offset, length);
+            case START_OBJECT:
+                return "{";
+            case END_OBJECT:
+                return "}";
+            case START_ARRAY:
+                return "[";
+            case END_ARRAY:
+                return "]";
+            case VALUE_NULL:
+                return "null";
+            default:
+                return null;
+        }
     }
 
     @Override
     public BytesRef utf8Bytes() throws IOException {
-        return new BytesRef(CharBuffer.wrap(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength()));
+        return new BytesRef(CharBuffer.wrap(textCharacters(), textOffset(), textLength()));
     }
 
     @Override
     public Object objectText() throws IOException {
-        JsonToken currentToken = parser.getCurrentToken();
-        if (currentToken == JsonToken.VALUE_STRING) {
-            return text();
-        } else if (currentToken == JsonToken.VALUE_NUMBER_INT || currentToken == JsonToken.VALUE_NUMBER_FLOAT) {
-            return parser.getNumberValue();
-        } else if (currentToken == JsonToken.VALUE_TRUE) {
-            return Boolean.TRUE;
-        } else if (currentToken == JsonToken.VALUE_FALSE) {
-            return Boolean.FALSE;
-        } else if (currentToken == JsonToken.VALUE_NULL) {
+        if (token == Token.VALUE_NUMBER) {
+            return numberValue();
+        } else if (token == Token.VALUE_BOOLEAN) {
+            return doBooleanValue();
+        } else if (token == Token.VALUE_NULL) {
             return null;
-        } else {
-            return text();
         }
+        return text();
     }
 
     @Override
     public Object objectBytes() throws IOException {
-        JsonToken currentToken = parser.getCurrentToken();
-        if (currentToken == JsonToken.VALUE_STRING) {
-            return utf8Bytes();
-        } else if (currentToken == JsonToken.VALUE_NUMBER_INT || currentToken == JsonToken.VALUE_NUMBER_FLOAT) {
-            return parser.getNumberValue();
-        } else if (currentToken == JsonToken.VALUE_TRUE) {
-            return Boolean.TRUE;
-        } else if (currentToken == JsonToken.VALUE_FALSE) {
-            return Boolean.FALSE;
-        } else if (currentToken == JsonToken.VALUE_NULL) {
+        if (token == Token.VALUE_NUMBER) {
+            return numberValue();
+        } else if (token == Token.VALUE_BOOLEAN) {
+            return doBooleanValue();
+        } else if (token == Token.VALUE_NULL) {
             return null;
-        } else {
-            return utf8Bytes();
         }
+        return utf8Bytes();
     }
 
     @Override
     public boolean hasTextCharacters() {
-        return parser.hasTextCharacters();
+        return (token == Token.VALUE_STRING || token == Token.VALUE_NUMBER || token == Token.VALUE_BOOLEAN) && !attribute;
     }
 
     @Override
     public char[] textCharacters() throws IOException {
-        return parser.getTextCharacters();
+        if (hasTextCharacters()) {
+            return chars;
+        }
+        String s = text();
+        return s != null ? s.toCharArray() : null;
     }
 
     @Override
     public int textLength() throws IOException {
-        return parser.getTextLength();
+        if (hasTextCharacters()) {
+            return length;
+        }
+        String s = text();
+        return s != null ? s.length() : 0;
     }
 
     @Override
     public int textOffset() throws IOException {
-        return parser.getTextOffset();
+        return hasTextCharacters() ? offset : 0;
     }
 
     @Override
     public Number numberValue() throws IOException {
-        return parser.getNumberValue();
+        switch (numberType()) {
+            case INT:
+                return (int) XmlValueInference.longValue(chars, offset, length);
+            case LONG:
+                return XmlValueInference.longValue(chars, offset, length);
+            default:
+                return Double.parseDouble(text());
+        }
     }
 
     @Override
     public short doShortValue() throws IOException {
-        return parser.getShortValue();
+        return (short) doLongValue();
     }
 
     @Override
     public int doIntValue() throws IOException {
-        return parser.getIntValue();
+        return (int) doLongValue();
     }
 
     @Override
     public long doLongValue() throws IOException {
-        return parser.getLongValue();
+        if (numberType() == NumberType.DOUBLE) {
+            return (long) Double.parseDouble(text());
+        }
+        return XmlValueInference.longValue(chars, offset, length);
     }
 
     @Override
     public float doFloatValue() throws IOException {
-        return parser.getFloatValue();
+        return (float) doDoubleValue();
     }
 
     @Override
     public double doDoubleValue() throws IOException {
-        return parser.getDoubleValue();
+        if (numberType() == NumberType.DOUBLE) {
+            return Double.parseDouble(text());
+        }
+        return XmlValueInference.longValue(chars, offset, length);
     }
 
     @Override
     public boolean isClosed() {
-        return parser.isClosed();
+        return closed;
     }
 
     @Override
     public byte[] binaryValue() throws IOException {
-        return parser.getBinaryValue();
+        if (token != Token.VALUE_STRING && token != Token.VALUE_NUMBER && token != Token.VALUE_BOOLEAN) {
+            throw new IllegalStateException("current token [" + token + "] is not a binary value");
+        }
+        try {
+            return Base64Variants.getDefaultVariant().decode(text());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e);
+        }
     }
 
+    /**
+     * The location of the XML event the parser has read last. Because of the lookahead
+     * for repeated elements, this may be after the current token.
+     *
+     * @return the location, or null if not known
+     */
     @Override
     public XContentLocation getTokenLocation() {
-        return null;
+        XMLStreamLocation2 location = reader.getLocationInfo().getStartLocation();
+        return location != null ? new XContentLocation(location.getLineNumber(), location.getColumnNumber()) : null;
     }
 
     @Override
     public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
         try {
-            parser.close();
-        } catch (IOException e) {
+            reader.closeCompletely();
+        } catch (XMLStreamException e) {
             // ignore
         }
+        // the arrays may have grown
+        Buffers b = buffers.v();
+        b.text = text;
+        b.path = path;
+        b.names = names;
+        b.arrays = arrays;
+        b.queuedTokens = queuedTokens;
+        b.queuedNames = queuedNames;
+        b.queuedElements = queuedElements;
+        b.queuedKinds = queuedKinds;
+        b.queuedOffsets = queuedOffsets;
+        b.queuedLengths = queuedLengths;
+        b.queuedText = queuedText;
+        buffers.close();
     }
 
-    private NumberType convertNumberType(JsonParser.NumberType numberType) {
-        switch (numberType) {
-            case INT:
-                return NumberType.INT;
-            case LONG:
-                return NumberType.LONG;
-            case FLOAT:
-                return NumberType.FLOAT;
-            case DOUBLE:
-                return NumberType.DOUBLE;
+    private Token emit(Token t) {
+        if (t == Token.START_OBJECT) {
+            push(false);
+        } else if (t == Token.END_OBJECT) {
+            depth--;
+        } else if (t == Token.FIELD_NAME) {
+            names[depth] = name;
         }
-        throw new IllegalStateException("No matching token for number_type [" + numberType + "]");
+        return token = t;
     }
 
-    private Token convertToken(JsonToken token) {
-        if (token == null) {
-            return null;
+    private void push(boolean array) {
+        depth++;
+        if (depth == names.length) {
+            names = Arrays.copyOf(names, 2 * names.length);
+            arrays = Arrays.copyOf(arrays, 2 * arrays.length);
         }
-        switch (token) {
-            case FIELD_NAME:
+        names[depth] = null;
+        arrays[depth] = array;
+    }
+
+    /**
+     * Checks if the element of the current field name is repeated by the next sibling element.
+     *
+     * @return true if the element is repeated
+     */
+    private boolean isRepeated() throws IOException {
+        int i = 0;
+        if (!fill(i)) {
+            return false;
+        }
+        if (queuedTokens[head] == Token.START_OBJECT) {
+            int open = 1;
+            while (open > 0) {
+                if (!fill(++i)) {
+                    return false;
+                }
+                Token t = queuedTokens[head + i];
+                if (t == Token.START_OBJECT) {
+                    open++;
+                } else if (t == Token.END_OBJECT) {
+                    open--;
+                }
+            }
+        }
+        if (!fill(++i)) {
+            return false;
+        }
+        return queuedTokens[head + i] == Token.FIELD_NAME && queuedElements[head + i]
+                && name.equals(queuedNames[head + i]);
+    }
+
+    /**
+     * Reads ahead until the queue has a token at the given index.
+     *
+     * @param i the index, relative to the head of the queue
+     * @return false if the document ends or the lookahead size is exceeded
+     */
+    private boolean fill(int i) throws IOException {
+        while (count - head <= i) {
+            int size = count - head + queuedTextLength - (head < count ? queuedOffsets[head] : queuedTextLength);
+            if (size >= arrayLookahead) {
+                return false;
+            }
+            Token t = readToken();
+            if (t == null) {
+                return false;
+            }
+            enqueue(t);
+        }
+        return true;
+    }
+
+    /**
+     * Takes the next token from the queue, or from the reader, and makes it the current token.
+     * Sets the current token, but not the parse context.
+     *
+     * @return the token
+     */
+    private Token take() throws IOException {
+        if (head < count) {
+            token = queuedTokens[head];
+            name = queuedNames[head];
+            element = queuedElements[head];
+            kind = queuedKinds[head];
+            chars = queuedText;
+            offset = queuedOffsets[head];
+            length = queuedLengths[head];
+            attribute = false;
+            queued = true;
+            head++;
+            return token;
+        }
+        head = 0;
+        count = 0;
+        queuedTextLength = 0;
+        token = readToken();
+        name = token == Token.FIELD_NAME ? path[level] : null;
+        element = state == START_ELEMENT;
+        kind = textKind;
+        chars = text;
+        offset = 0;
+        length = textLength;
+        attribute = state == ATTRIBUTE_VALUE && inference == null;
+        queued = false;
+        return token;
+    }
+
+    /**
+     * Puts the current token back, in front of the queue.
+     */
+    private void unread() {
+        if (queued) {
+            head--;
+        } else if (token != null) {
+            enqueue(token);
+        }
+    }
+
+    /**
+     * Appends the token that has just been read to the queue.
+     */
+    private void enqueue(Token t) {
+        if (count == queuedTokens.length) {
+            compact();
+        }
+        int textOffset = queuedTextLength;
+        int textLength = 0;
+        if (t == Token.VALUE_STRING || t == Token.VALUE_NUMBER || t == Token.VALUE_BOOLEAN) {
+            if (state == ATTRIBUTE_VALUE && inference == null) {
+                String value = reader.getAttributeValue(attributeIndex);
+                textLength = value.length();
+                ensureQueuedText(textLength);
+                value.getChars(0, textLength, queuedText, queuedTextLength);
+            } else {
+                textLength = this.textLength;
+                ensureQueuedText(textLength);
+                System.arraycopy(text, 0, queuedText, queuedTextLength, textLength);
+            }
+            // the queue may have been compacted to make room for the text
+            textOffset = queuedTextLength;
+            queuedTextLength += textLength;
+        }
+        queuedTokens[count] = t;
+        queuedNames[count] = t == Token.FIELD_NAME ? path[level] : null;
+        queuedElements[count] = state == START_ELEMENT;
+        queuedKinds[count] = textKind;
+        queuedOffsets[count] = textOffset;
+        queuedLengths[count] = textLength;
+        count++;
+    }
+
+    private void ensureQueuedText(int textLength) {
+        if (queuedTextLength + textLength > queuedText.length) {
+            if (head > 0) {
+                compact();
+            }
+            if (queuedTextLength + textLength > queuedText.length) {
+                queuedText = ArrayUtil.grow(queuedText, queuedTextLength + textLength);
+            }
+        }
+    }
+
+    /**
+     * Removes the tokens before the head of the queue, or grows the queue if there are none.
+     */
+    private void compact() {
+        if (head == 0) {
+            int size = ArrayUtil.oversize(count + 1, 1);
+            queuedTokens = Arrays.copyOf(queuedTokens, size);
+            queuedNames = Arrays.copyOf(queuedNames, size);
+            queuedElements = Arrays.copyOf(queuedElements, size);
+            queuedKinds = Arrays.copyOf(queuedKinds, size);
+            queuedOffsets = Arrays.copyOf(queuedOffsets, size);
+            queuedLengths = Arrays.copyOf(queuedLengths, size);
+            return;
+        }
+        int textStart = head < count ? queuedOffsets[head] : queuedTextLength;
+        System.arraycopy(queuedText, textStart, queuedText, 0, queuedTextLength - textStart);
+        queuedTextLength -= textStart;
+        int n = count - head;
+        System.arraycopy(queuedTokens, head, queuedTokens, 0, n);
+        System.arraycopy(queuedNames, head, queuedNames, 0, n);
+        System.arraycopy(queuedElements, head, queuedElements, 0, n);
+        System.arraycopy(queuedKinds, head, queuedKinds, 0, n);
+        System.arraycopy(queuedOffsets, head, queuedOffsets, 0, n);
+        System.arraycopy(queuedLengths, head, queuedLengths, 0, n);
+        for (int i = 0; i < n; i++) {
+            queuedOffsets[i] -= textStart;
+        }
+        head = 0;
+        count = n;
+    }
+
+    /**
+     * Reads the next token from the XML events, without arrays.
+     *
+     * @return the token, or null at the end of the document
+     */
+    private Token readToken() throws IOException {
+        textKind = XmlValueInference.STRING;
+        if (pendingToken != null) {
+            Token t = pendingToken;
+            pendingToken = null;
+            if (t == Token.START_OBJECT) {
+                enter();
+            } else if (t == Token.FIELD_NAME) {
+                path[level] = localName;
+            } else if (t == Token.VALUE_STRING) {
+                // the text of an element with attributes
+                return value(level);
+            }
+            return t;
+        }
+        switch (next()) {
+            case START_ELEMENT:
+                if (level == 0) {
+                    // the root element of the next document in a stream
+                    enter();
+                    return Token.START_OBJECT;
+                }
+                if (mayBeLeaf) {
+                    // the previous element has child elements
+                    pendingToken = Token.FIELD_NAME;
+                    enter();
+                    return Token.START_OBJECT;
+                }
+                path[level] = localName;
+                mayBeLeaf = true;
                 return Token.FIELD_NAME;
-            case VALUE_FALSE:
-            case VALUE_TRUE:
-                return Token.VALUE_BOOLEAN;
-            case VALUE_STRING:
+            case END_ELEMENT:
+                if (mayBeLeaf) {
+                    mayBeLeaf = false;
+                    return Token.VALUE_NULL;
+                }
+                level--;
+                return Token.END_OBJECT;
+            case ATTRIBUTE_NAME:
+                if (mayBeLeaf) {
+                    // the previous element has attributes
+                    mayBeLeaf = false;
+                    pendingToken = Token.FIELD_NAME;
+                    enter();
+                    return Token.START_OBJECT;
+                }
+                path[level] = localName;
+                return Token.FIELD_NAME;
+            case ATTRIBUTE_VALUE:
+                if (inference != null) {
+                    String value = reader.getAttributeValue(attributeIndex);
+                    textLength = 0;
+                    append(value.length());
+                    textLength = value.length();
+                    value.getChars(0, textLength, text, 0);
+                    return value(level + 1);
+                }
+                return Token.VALUE_STRING;
+            case TEXT:
+                if (mayBeLeaf) {
+                    mayBeLeaf = false;
+                    state = END_ELEMENT;
+                    return value(level + 1);
+                }
+                if (isWhitespace()) {
+                    // whitespace after attributes, the element ends here
+                    state = END_ELEMENT;
+                    level--;
+                    return Token.END_OBJECT;
+                }
+                path[level] = "";
+                pendingToken = Token.VALUE_STRING;
+                return Token.FIELD_NAME;
+            default:
+                return null;
+        }
+    }
+
+    private int next() throws IOException {
+        try {
+            switch (state) {
+                case ATTRIBUTE_VALUE:
+                    attributeIndex++;
+                    // fall through
+                case START_ELEMENT:
+                    if (attributeIndex < attributeCount) {
+                        localName = reader.getAttributeLocalName(attributeIndex);
+                        return state = ATTRIBUTE_NAME;
+                    }
+                    // text up to a child element is dropped, as in elements with child elements
+                    boolean hasText = collectText();
+                    if (reader.getEventType() == XMLStreamConstants.START_ELEMENT) {
+                        return startElement();
+                    }
+                    return state = hasText ? TEXT : END_ELEMENT;
+                case ATTRIBUTE_NAME:
+                    // the reader stays on the start element, the value is read when asked for
+                    return state = ATTRIBUTE_VALUE;
+                case TEXT:
+                    return state = END_ELEMENT;
+                case END:
+                    return END;
+                default:
+                    while (reader.hasNext()) {
+                        switch (reader.next()) {
+                            case XMLStreamConstants.START_ELEMENT:
+                                return startElement();
+                            case XMLStreamConstants.END_ELEMENT:
+                                return state = END_ELEMENT;
+                            default:
+                                break;
+                        }
+                    }
+                    return state = END;
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private int startElement() {
+        localName = reader.getLocalName();
+        attributeCount = reader.getAttributeCount();
+        attributeIndex = 0;
+        return state = START_ELEMENT;
+    }
+
+    /**
+     * Collects character data until the next start or end element.
+     *
+     * @return true if there was character data
+     */
+    private boolean collectText() throws XMLStreamException {
+        boolean hasText = false;
+        textLength = 0;
+        while (true) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                case XMLStreamConstants.END_ELEMENT:
+                case XMLStreamConstants.END_DOCUMENT:
+                    return hasText;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    hasText = true;
+                    int length = reader.getTextLength();
+                    append(length);
+                    reader.getTextCharacters(0, text, textLength, length);
+                    textLength += length;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void append(int length) {
+        if (textLength + length > text.length) {
+            text = ArrayUtil.grow(text, textLength + length);
+        }
+    }
+
+    /**
+     * The token of a text value in the text buffer.
+     *
+     * @param end the index after the last field name of the path of the value
+     * @return the token
+     */
+    private Token value(int end) {
+        if (inference != null) {
+            int kind = XmlValueInference.scan(text, textLength);
+            if (kind != XmlValueInference.STRING && !inference.isExcluded(path, 1, end, nameTable)) {
+                textKind = kind;
+            }
+        }
+        switch (textKind) {
+            case XmlValueInference.STRING:
                 return Token.VALUE_STRING;
-            case VALUE_NUMBER_INT:
-            case VALUE_NUMBER_FLOAT:
+            case XmlValueInference.TRUE:
+            case XmlValueInference.FALSE:
+                return Token.VALUE_BOOLEAN;
+            default:
                 return Token.VALUE_NUMBER;
-            case VALUE_NULL:
-                return Token.VALUE_NULL;
-            case START_OBJECT:
-                return Token.START_OBJECT;
-            case END_OBJECT:
-                return Token.END_OBJECT;
-            case START_ARRAY:
-                return Token.START_ARRAY;
-            case END_ARRAY:
-                return Token.END_ARRAY;
-            case VALUE_EMBEDDED_OBJECT:
-                return Token.VALUE_EMBEDDED_OBJECT;
         }
-        throw new IllegalStateException("No matching token for json_token [" + token + "]");
     }
-}
\ No newline at end of file
+
+    private boolean isWhitespace() {
+        for (int i = 0; i < textLength; i++) {
+            if (text[i] > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void enter() {
+        level++;
+        if (level == path.length) {
+            path = Arrays.copyOf(path, 2 * path.length);
+        }
+        path[level] = null;
+    }
+
+    /**
+     * The arrays of a parser, which are recycled when the parser is closed.
+     */
+    private static class Buffers {
+
+        private char[] text = new char[64];
+
+        private String[] path = new String[16];
+
+        private String[] names = new String[16];
+
+        private boolean[] arrays = new boolean[16];
+
+        private Token[] queuedTokens = new Token[16];
+
+        private String[] queuedNames = new String[16];
+
+        private boolean[] queuedElements = new boolean[16];
+
+        private int[] queuedKinds = new int[16];
+
+        private int[] queuedOffsets = new int[16];
+
+        private int[] queuedLengths = new int[16];
+
+        private char[] queuedText = new char[64];
+
+        private void clear() {
+            if (text.length > MAX_RECYCLED_SIZE) {
+                text = new char[64];
+            }
+            if (queuedText.length > MAX_RECYCLED_SIZE) {
+                queuedText = new char[64];
+            }
+            if (path.length > MAX_RECYCLED_SIZE) {
+                path = new String[16];
+            } else {
+                Arrays.fill(path, null);
+            }
+            if (names.length > MAX_RECYCLED_SIZE) {
+                names = new String[16];
+                arrays = new boolean[16];
+            } else {
+                Arrays.fill(names, null);
+                Arrays.fill(arrays, false);
+            }
+            if (queuedTokens.length > MAX_RECYCLED_SIZE) {
+                queuedTokens = new Token[16];
+                queuedNames = new String[16];
+                queuedElements = new boolean[16];
+                queuedKinds = new int[16];
+                queuedOffsets = new int[16];
+                queuedLengths = new int[16];
+            } else {
+                Arrays.fill(queuedTokens, null);
+                Arrays.fill(queuedNames, null);
+            }
+        }
+    }
+}
@@ -14,6 +14,10 @@ public class XmlXParams {
 
     private XmlNamespaceContext namespaceContext;
 
+    private final XmlQNameCache qnameCache = new XmlQNameCache();
+
+    private boolean declareAllNamespaces = true;
+
     public XmlXParams() {
         this(null, null);
     }
@@ -24,13 +28,11 @@ public class XmlXParams {
 
     public XmlXParams(QName root, XmlNamespaceContext namespaceContext) {
         this.root = root != null ? root : DEFAULT_ROOT;
-        if (namespaceContext == null) {
-            namespaceContext = XmlNamespaceContext.getDefaultInstance();
-            namespaceContext.addNamespace(DEFAULT_ROOT.getPrefix(), DEFAULT_ROOT.getNamespaceURI());
-        } else {
+        // without a namespace context, only the namespace of the root is declared
+        if (namespaceContext != null) {
             namespaceContext.addNamespace(DEFAULT_ROOT.getPrefix(), DEFAULT_ROOT.getNamespaceURI());
-            this.namespaceContext = namespaceContext;
         }
+        this.namespaceContext = namespaceContext;
     }
 
     public QName getQName() {
@@ -41,4 +43,25 @@ public class XmlXParams {
         return namespaceContext;
     }
 
+    public XmlQNameCache getQNameCache() {
+        return qnameCache;
+    }
+
+    /**
+     * By default, all prefixes of the namespace context are declared on the root element. Otherwise, a prefix
+     * is declared on the first element or attribute that uses it, which makes documents smaller that use few
+     * prefixes, and larger that use a prefix in many sibling elements.
+     *
+     * @param declareAllNamespaces true if all namespaces of the context are declared on the root element
+     * @return these parameters
+     */
+    public XmlXParams setDeclareAllNamespaces(boolean declareAllNamespaces) {
+        this.declareAllNamespaces = declareAllNamespaces;
+        return this;
+    }
+
+    public boolean isDeclareAllNamespaces() {
+        return declareAllNamespaces;
+    }
+
 }
@@ -1,7 +1,10 @@
 package org.xbib.elasticsearch.plugin.xml;
 
 import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.rest.RestModule;
+import org.xbib.elasticsearch.rest.xml.RestXmlBulkAction;
 import org.xbib.elasticsearch.rest.xml.XmlService;
 
 import java.util.ArrayList;
@@ -29,4 +32,24 @@ public class XmlPlugin extends Plugin {
         return services;
     }
 
+    public void onModule(RestModule module) {
+        module.addRestAction(RestXmlBulkAction.class);
+    }
+
+    /**
+     * Adds bounded thread pools for XML transcoding, for converting search hits in parallel, and for
+     * XML bulk requests. Node settings take precedence.
+     */
+    @Override
+    public Settings additionalSettings() {
+        return Settings.settingsBuilder()
+                .put("threadpool." + XmlService.THREAD_POOL_NAME + ".type", "fixed")
+                .put("threadpool." + XmlService.THREAD_POOL_NAME + ".queue_size", 100)
+                .put("threadpool." + XmlService.PARALLEL_THREAD_POOL_NAME + ".type", "fixed")
+                .put("threadpool." + XmlService.PARALLEL_THREAD_POOL_NAME + ".queue_size", 1000)
+                .put("threadpool." + XmlService.BULK_THREAD_POOL_NAME + ".type", "fixed")
+                .put("threadpool." + XmlService.BULK_THREAD_POOL_NAME + ".queue_size", 10)
+                .build();
+    }
+
 }
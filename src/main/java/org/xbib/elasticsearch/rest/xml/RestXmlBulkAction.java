@@ -0,0 +1,177 @@
+package org.xbib.elasticsearch.rest.xml;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.xbib.elasticsearch.action.xml.XmlBulkLoader;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlValueInference;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlXContentParser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+import static org.elasticsearch.rest.RestRequest.Method.PUT;
+
+/**
+ * Indexes the records of an XML stream in bulk.
+ *
+ * The records are loaded from the request body by a {@link XmlBulkLoader}. The work is done in the xml_bulk
+ * thread pool, not in the I/O threads, and not in the xml thread pool, so long bulk loads do not hold up
+ * the transcoding of responses. Records are converted in parallel by the bulk pool of the
+ * {@link XmlService}, a request can not ask for more parallelism than the pool has threads.
+ */
+public class RestXmlBulkAction extends BaseRestHandler {
+
+    /**
+     * The path suffix of the XML bulk endpoints. Request bodies under this suffix are not converted by the XML filter.
+     */
+    public static final String PATH_SUFFIX = "/_xml/_bulk";
+
+    private final ThreadPool threadPool;
+
+    private final XmlService xmlService;
+
+    private final String record;
+
+    private final int concurrency;
+
+    private final int actions;
+
+    private final ByteSizeValue size;
+
+    private final TimeValue timeout;
+
+    private final XmlValueInference valueInference;
+
+    private final int arrayLookahead;
+
+    private final int parallelism;
+
+    private final boolean ordered;
+
+    @Inject
+    public RestXmlBulkAction(Settings settings, RestController controller, Client client, ThreadPool threadPool,
+                             XmlService xmlService) {
+        super(settings, controller, client);
+        this.threadPool = threadPool;
+        this.xmlService = xmlService;
+        this.record = settings.get("xml.bulk.record", "record");
+        this.concurrency = settings.getAsInt("xml.bulk.concurrency", 1);
+        this.actions = settings.getAsInt("xml.bulk.actions", 1000);
+        this.size = settings.getAsBytesSize("xml.bulk.size", new ByteSizeValue(5, ByteSizeUnit.MB));
+        this.timeout = settings.getAsTime("xml.bulk.timeout", TimeValue.timeValueMinutes(5));
+        this.valueInference = settings.getAsBoolean("xml.infer_types", false) ?
+                new XmlValueInference(Arrays.asList(settings.getAsArray("xml.infer_types.exclude"))) : null;
+        this.arrayLookahead = settings.getAsInt("xml.array_lookahead", XmlXContentParser.DEFAULT_ARRAY_LOOKAHEAD);
+        this.parallelism = settings.getAsInt("xml.bulk.parallelism", 1);
+        this.ordered = settings.getAsBoolean("xml.bulk.ordered", true);
+        // index and type are required, where the path has none, they are given as parameters
+        controller.registerHandler(POST, PATH_SUFFIX, this);
+        controller.registerHandler(PUT, PATH_SUFFIX, this);
+        controller.registerHandler(POST, "/{index}" + PATH_SUFFIX, this);
+        controller.registerHandler(PUT, "/{index}" + PATH_SUFFIX, this);
+        controller.registerHandler(POST, "/{index}/{type}" + PATH_SUFFIX, this);
+        controller.registerHandler(PUT, "/{index}/{type}" + PATH_SUFFIX, this);
+    }
+
+    static boolean isXmlBulk(RestRequest request) {
+        return request.rawPath().endsWith(PATH_SUFFIX);
+    }
+
+    @Override
+    public void handleRequest(final RestRequest request, final RestChannel channel, final Client client) throws Exception {
+        final String index = request.param("index");
+        final String type = request.param("type");
+        if (index == null || type == null) {
+            channel.sendResponse(new BytesRestResponse(RestStatus.BAD_REQUEST, "index and type are required, in the path or as parameters"));
+            return;
+        }
+        final int parallelism = request.paramAsInt("parallelism", this.parallelism);
+        if (parallelism < 1 || parallelism > xmlService.getMaxBulkParallelism()) {
+            channel.sendResponse(new BytesRestResponse(RestStatus.BAD_REQUEST,
+                    "parallelism must be between 1 and " + xmlService.getMaxBulkParallelism()));
+            return;
+        }
+        try {
+            threadPool.executor(XmlService.BULK_THREAD_POOL_NAME).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        bulk(index, type, parallelism, request, channel, client);
+                    } catch (Throwable e) {
+                        logger.error(e.getMessage(), e);
+                        try {
+                            channel.sendResponse(new BytesRestResponse(channel, e));
+                        } catch (IOException e1) {
+                            logger.error(e1.getMessage(), e1);
+                        }
+                    }
+                }
+            });
+        } catch (EsRejectedExecutionException e) {
+            logger.warn(e.getMessage(), e);
+            channel.sendResponse(new BytesRestResponse(RestStatus.TOO_MANY_REQUESTS, e.getMessage()));
+        }
+    }
+
+    private void bulk(String index, String type, int parallelism, RestRequest request, RestChannel channel,
+                      Client client) throws IOException {
+        XmlBulkLoader loader = new XmlBulkLoader(client)
+                .setRecord(request.param("record", record))
+                .setId(request.param("id"))
+                .setConcurrency(request.paramAsInt("concurrency", concurrency))
+                .setActions(request.paramAsInt("actions", actions))
+                .setSize(request.paramAsSize("size", size))
+                .setTimeout(request.paramAsTime("timeout", timeout))
+                .setValueInference(valueInference)
+                .setArrayLookahead(arrayLookahead)
+                .setParallelism(parallelism)
+                .setExecutor(xmlService.getBulkPool())
+                .setOrdered(request.paramAsBoolean("ordered", ordered));
+        try {
+            loader.load(index, type, request.content().streamInput());
+        } catch (Throwable e) {
+            logger.error(e.getMessage(), e);
+            // only malformed XML in the request body is the fault of the client
+            RestStatus status = e instanceof IOException && !(e instanceof InterruptedIOException) ?
+                    RestStatus.BAD_REQUEST : ExceptionsHelper.status(e);
+            XContentBuilder builder = channel.newErrorBuilder();
+            builder.startObject();
+            ElasticsearchException.renderThrowable(builder, request, e);
+            builder.field("status", status.getStatus());
+            // the records read before the failure are indexed
+            result(builder, loader.getResult());
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(status, builder));
+            return;
+        }
+        XContentBuilder builder = channel.newBuilder();
+        builder.startObject();
+        result(builder, loader.getResult());
+        builder.endObject();
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+    }
+
+    private static void result(XContentBuilder builder, XmlBulkLoader.Result result) throws IOException {
+        builder.field("took", result.getTook())
+                .field("errors", result.getFailures() > 0)
+                .field("records", result.getRecords())
+                .field("failures", result.getFailures());
+    }
+}
@@ -1,8 +1,15 @@
 package org.xbib.elasticsearch.rest.xml;
 
+import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.ReleasableBytesStream;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentType;
@@ -16,13 +23,25 @@ import org.elasticsearch.rest.RestFilterChain;
 import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.rest.RestResponse;
 import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
 
 import org.xbib.elasticsearch.common.xcontent.XmlXContentBuilder;
 import org.xbib.elasticsearch.common.xcontent.XmlXContentFactory;
 import org.xbib.elasticsearch.common.xcontent.XmlXContentType;
+import org.xbib.elasticsearch.common.xcontent.xml.AbstractXmlXContentGenerator;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlFragmentStream;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlHitsTranscoder;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlValueInference;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlXContent;
+import org.xbib.elasticsearch.common.xcontent.xml.XmlXContentParser;
 import org.xbib.elasticsearch.common.xcontent.xml.XmlXParams;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 /**
  * XML filter for Elasticsearch REST requests and responses.
@@ -35,13 +54,59 @@ public class XmlFilter extends RestFilter {
 
     private final XmlXParams params;
 
-    public XmlFilter() {
+    private final XContentType requestContentType;
+
+    private final ThreadPool threadPool;
+
+    private final ByteSizeValue asyncThreshold;
+
+    private final ExecutorService parallelExecutor;
+
+    private final int parallelWindow;
+
+    private final ByteSizeValue parallelThreshold;
+
+    private final XmlXContent xmlXContent;
+
+    private final XmlValueInference valueInference;
+
+    private final int arrayLookahead;
+
+    public XmlFilter(Settings settings, ThreadPool threadPool) {
         this.params = new XmlXParams();
+        this.threadPool = threadPool;
+        this.asyncThreshold = settings.getAsBytesSize("xml.async_threshold", new ByteSizeValue(1, ByteSizeUnit.MB));
+        // a single thread converts as fast as the calling thread, so parallel conversion is off
+        int parallelism = threadPool.info(XmlService.PARALLEL_THREAD_POOL_NAME).getMax();
+        this.parallelExecutor = parallelism > 1 ?
+                (ExecutorService) threadPool.executor(XmlService.PARALLEL_THREAD_POOL_NAME) : null;
+        this.parallelWindow = 2 * parallelism;
+        this.parallelThreshold = settings.getAsBytesSize("xml.parallel_threshold", new ByteSizeValue(1, ByteSizeUnit.MB));
+        // Smile is cheaper to parse, but some handlers read the request body as text, they need JSON
+        XContentType contentType = XContentType.fromRestContentType(settings.get("xml.request.format", "json"));
+        this.requestContentType = contentType != null ? contentType : XContentType.JSON;
+        this.xmlXContent = XmlXContent.xmlXContent(settings.get("xml.generator", XmlXContent.JACKSON_GENERATOR));
+        this.valueInference = settings.getAsBoolean("xml.infer_types", false) ?
+                new XmlValueInference(Arrays.asList(settings.getAsArray("xml.infer_types.exclude"))) : null;
+        this.arrayLookahead = settings.getAsInt("xml.array_lookahead", XmlXContentParser.DEFAULT_ARRAY_LOOKAHEAD);
     }
 
     @Override
     public void process(RestRequest request, RestChannel channel, RestFilterChain filterChain) {
-        filterChain.continueProcessing(new XmlRequest(request), new XmlChannel(request, channel));
+        // the XML bulk handler reads the XML request body by itself
+        RestRequest restRequest = RestXmlBulkAction.isXmlBulk(request) ? request : new XmlRequest(request);
+        filterChain.continueProcessing(restRequest, new XmlChannel(request, channel));
+    }
+
+    /**
+     * Creates an output that converts large raw fields in the parallel thread pool, or null if
+     * the output must be written serially. Fragments can not be indented, so pretty output is serial.
+     */
+    private XmlFragmentStream newFragmentStream(BytesStreamOutput bytesOutput, boolean pretty) {
+        if (parallelExecutor == null || pretty) {
+            return null;
+        }
+        return new XmlFragmentStream(bytesOutput, parallelExecutor, parallelWindow, parallelThreshold.bytes());
     }
 
     private boolean isXml(RestRequest request) {
@@ -57,6 +122,8 @@ public class XmlFilter extends RestFilter {
 
         private RestRequest request;
 
+        private BytesReference content;
+
         XmlRequest(RestRequest request) {
             this.request = request;
         }
@@ -81,26 +148,49 @@ public class XmlFilter extends RestFilter {
             return request.hasContent();
         }
 
+        /**
+         * Handlers may ask more than once for the content, so the converted content is kept.
+         */
         @Override
         public BytesReference content() {
-            if (isXml(request)) {
-                XContentParser parser = null;
-                try {
-                    BytesReference b = request.content();
-                    parser = XmlXContentFactory.xContent(XmlXContentType.XML).createParser(b);
-                    parser.nextToken();
-                    XContentBuilder builder = XContentFactory.jsonBuilder();
-                    builder.copyCurrentStructure(parser);
+            if (content == null) {
+                content = isXml(request) && request.hasContent() ? convert(request.content()) : request.content();
+            }
+            return content;
+        }
+
+        private BytesReference convert(BytesReference b) {
+            XContentParser parser = null;
+            try {
+                parser = XmlXContentFactory.xContent(XmlXContentType.XML).createParser(b);
+                ((XmlXContentParser) parser).setValueInference(valueInference)
+                        .setArrayLookahead(arrayLookahead);
+                parser.nextToken();
+                XContentBuilder builder = XContentFactory.contentBuilder(requestContentType);
+                builder.copyCurrentStructure(parser);
+                if (parser.nextToken() == null) {
                     return builder.bytes();
-                } catch (Throwable e) {
-                    logger.error(e.getMessage(), e);
-                } finally {
-                    if (parser != null) {
-                        parser.close();
-                    }
+                }
+                // a stream of documents, for example bulk or multi search, each document is followed by a separator
+                byte separator = requestContentType.xContent().streamSeparator();
+                BytesStreamOutput out = new BytesStreamOutput();
+                builder.bytes().writeTo(out);
+                out.write(separator);
+                do {
+                    builder = XContentFactory.contentBuilder(requestContentType);
+                    builder.copyCurrentStructure(parser);
+                    builder.bytes().writeTo(out);
+                    out.write(separator);
+                } while (parser.nextToken() != null);
+                return out.bytes();
+            } catch (Throwable e) {
+                logger.error(e.getMessage(), e);
+            } finally {
+                if (parser != null) {
+                    parser.close();
                 }
             }
-            return request.content();
+            return b;
         }
 
         @Override
@@ -147,37 +237,130 @@ public class XmlFilter extends RestFilter {
             this.channel = channel;
         }
 
+        /**
+         * Creates a builder that renders into XML directly, so responses do not take the route
+         * over JSON serialization and parsing.
+         */
+        @Override
+        public XContentBuilder newBuilder(@Nullable BytesReference autoDetectSource, boolean useFiltering) throws IOException {
+            if (!isXml(request)) {
+                return channel.newBuilder(autoDetectSource, useFiltering);
+            }
+            boolean pretty = request.paramAsBoolean("pretty", false);
+            BytesStreamOutput bytesOutput = channel.bytesOutput();
+            XmlFragmentStream fragmentStream = newFragmentStream(bytesOutput, pretty);
+            // search hits are written as raw _source fields, the fragment stream converts them in parallel
+            OutputStream out = fragmentStream != null ? fragmentStream : bytesOutput;
+            XContentBuilder builder = new XContentBuilder(xmlXContent, out,
+                    useFiltering ? request.paramAsStringArrayOrEmptyIfAll("filter_path") : null);
+            // the content type is replaced in sendResponse()
+            ((AbstractXmlXContentGenerator) builder.generator()).setParams(params).setContentType(XContentType.JSON)
+                    .setFragmentStream(fragmentStream);
+            if (pretty) {
+                builder.prettyPrint();
+            }
+            builder.humanReadable(request.paramAsBoolean("human", builder.humanReadable()));
+            return builder;
+        }
+
+        /**
+         * Error responses are passed through unchanged, so they are rendered as usual.
+         */
+        @Override
+        public XContentBuilder newErrorBuilder() throws IOException {
+            return channel.newErrorBuilder();
+        }
+
         @Override
         public void sendResponse(RestResponse response) {
+            if (isXml(request) && isXmlContent(response.content())) {
+                BytesRestResponse restResponse = new BytesRestResponse(response.status(), "text/xml; charset=UTF-8", response.content());
+                copyHeaders(response, restResponse);
+                channel.sendResponse(restResponse);
+                return;
+            }
             if (!response.status().equals(RestStatus.OK)) {
                 channel.sendResponse(response);
+                return;
             }
             if (isXml(request)) {
-                XContentParser parser = null;
+                final BytesReference content = response.content();
+                final XContentType xContentType = XContentFactory.xContentType(content);
+                if (xContentType == null) {
+                    channel.sendResponse(response);
+                    return;
+                }
+                if (content.length() <= asyncThreshold.bytes()) {
+                    transcode(content, xContentType);
+                    return;
+                }
+                // large responses are transcoded in the xml thread pool, so they do not block I/O threads
                 try {
-                    String string = response.content().toUtf8(); // takes some space ... :(
-                    XContentType xContentType = XContentFactory.xContentType(string);
-                    parser = XContentFactory.xContent(xContentType).createParser(string);
+                    threadPool.executor(XmlService.THREAD_POOL_NAME).execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            transcode(content, xContentType);
+                        }
+                    });
+                } catch (EsRejectedExecutionException e) {
+                    logger.warn(e.getMessage(), e);
+                    channel.sendResponse(new BytesRestResponse(RestStatus.TOO_MANY_REQUESTS, e.getMessage()));
+                }
+                return;
+            }
+            channel.sendResponse(response);
+        }
+
+        private void transcode(BytesReference content, XContentType xContentType) {
+            // parse directly from the response bytes, and write XML into the recycled pages of the
+            // underlying channel, they get released after the response has been written
+            BytesStreamOutput bytesOutput = channel.bytesOutput();
+            XContentParser parser = null;
+            try {
+                boolean pretty = request.paramAsBoolean("pretty", false);
+                // the hits of large JSON responses are sliced from the response bytes and converted in parallel
+                XmlFragmentStream fragmentStream = xContentType == XContentType.JSON
+                        && content.length() > parallelThreshold.bytes() ? newFragmentStream(bytesOutput, pretty) : null;
+                XmlXContentBuilder builder = new XmlXContentBuilder(xmlXContent,
+                        fragmentStream != null ? fragmentStream : bytesOutput);
+                ((AbstractXmlXContentGenerator) builder.generator()).setParams(params);
+                if (pretty) {
+                    builder.prettyPrint();
+                }
+                if (fragmentStream != null) {
+                    new XmlHitsTranscoder(fragmentStream).copy((AbstractXmlXContentGenerator) builder.generator(), content);
+                } else {
+                    parser = XContentFactory.xContent(xContentType).createParser(content);
                     parser.nextToken();
-                    XmlXContentBuilder builder = XmlXContentFactory.xmlBuilder(params);
-                    if (request.paramAsBoolean("pretty", false)) {
-                        builder.prettyPrint();
-                    }
                     builder.copyCurrentStructure(parser);
-                    BytesRestResponse restResponse = new BytesRestResponse(RestStatus.OK, "text/xml; charset=UTF-8", builder.bytes());
-                    channel.sendResponse(restResponse);
-                    return;
-                } catch (Throwable e) {
-                    logger.error(e.getMessage(), e);
-                    channel.sendResponse(new BytesRestResponse(RestStatus.INTERNAL_SERVER_ERROR, e.getMessage()));
-                    return;
-                } finally {
-                    if (parser != null) {
-                        parser.close();
+                }
+                BytesRestResponse restResponse = new BytesRestResponse(RestStatus.OK, "text/xml; charset=UTF-8", builder.bytes());
+                channel.sendResponse(restResponse);
+            } catch (Throwable e) {
+                logger.error(e.getMessage(), e);
+                if (bytesOutput instanceof ReleasableBytesStream) {
+                    ((ReleasableBytesStream) bytesOutput).bytes().close();
+                }
+                channel.sendResponse(new BytesRestResponse(RestStatus.INTERNAL_SERVER_ERROR, e.getMessage()));
+            } finally {
+                if (parser != null) {
+                    parser.close();
+                }
+            }
+        }
+
+        private boolean isXmlContent(BytesReference content) {
+            return content != null && content.length() > 0 && content.get(0) == '<';
+        }
+
+        private void copyHeaders(RestResponse from, RestResponse to) {
+            if (from.getHeaders() != null) {
+                for (Map.Entry<String, List<String>> entry : from.getHeaders().entrySet()) {
+                    for (String value : entry.getValue()) {
+                        to.addHeader(entry.getKey(), value);
                     }
                 }
             }
-            channel.sendResponse(response);
         }
     }
 
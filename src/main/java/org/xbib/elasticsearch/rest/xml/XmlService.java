@@ -4,21 +4,71 @@ import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.common.component.AbstractLifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.rest.RestController;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 public class XmlService extends AbstractLifecycleComponent<XmlService> {
 
+    /**
+     * The name of the thread pool for transcoding large responses.
+     */
+    public static final String THREAD_POOL_NAME = "xml";
+
+    /**
+     * The name of the thread pool for converting search hits in parallel.
+     */
+    public static final String PARALLEL_THREAD_POOL_NAME = "xml_parallel";
+
+    /**
+     * The name of the thread pool for XML bulk requests, which run as long as their upload and indexing.
+     */
+    public static final String BULK_THREAD_POOL_NAME = "xml_bulk";
+
     private final RestController controller;
 
+    private final ThreadPool threadPool;
+
+    private final int maxBulkParallelism;
+
+    private final ForkJoinPool bulkPool;
+
     @Inject
-    public XmlService(Settings settings, RestController controller) {
+    public XmlService(Settings settings, RestController controller, ThreadPool threadPool) {
         super(settings);
         this.controller = controller;
+        this.threadPool = threadPool;
+        this.maxBulkParallelism = Math.max(settings.getAsInt("xml.bulk.parallelism", 1),
+                settings.getAsInt("xml.bulk.max_parallelism", EsExecutors.boundedNumberOfProcessors(settings)));
+        // threads of a fork-join pool are started on demand
+        this.bulkPool = new ForkJoinPool(maxBulkParallelism);
+    }
+
+    /**
+     * The pool converting the records of XML bulk requests in parallel, shared by all requests of this node.
+     *
+     * @return the pool
+     */
+    public ExecutorService getBulkPool() {
+        return bulkPool;
+    }
+
+    /**
+     * The maximum parallelism of an XML bulk request, which is the number of threads of the bulk pool.
+     *
+     * @return the maximum parallelism
+     */
+    public int getMaxBulkParallelism() {
+        return maxBulkParallelism;
     }
 
     @Override
     protected void doStart() throws ElasticsearchException {
-        controller.registerFilter(new XmlFilter());
+        controller.registerFilter(new XmlFilter(settings, threadPool));
     }
 
     @Override
@@ -27,5 +77,6 @@ public class XmlService extends AbstractLifecycleComponent<XmlService> {
 
     @Override
     protected void doClose() throws ElasticsearchException {
+        ThreadPool.terminate(bulkPool, 10, TimeUnit.SECONDS);
     }
 }